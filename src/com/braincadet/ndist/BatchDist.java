@@ -0,0 +1,285 @@
+package com.braincadet.ndist;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.plugin.PlugIn;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * batch comparison of the reconstructions from a directory (searched recursively for .swc files),
+ * each one against the gold standard (gold=...) or, without the gold standard, all the pairs (A<B in path order)
+ * runs headless from the command line:
+ * java -cp ndist.jar:ij.jar com.braincadet.ndist.BatchDist dir=/data/recs gold=/data/gold.swc
+ * or as a plugin with the same keys as the macro options
+ * keys: dir, gold, out (csv, default dir/batch.csv), mask, search (KDTREE, GRID, BRUTE, SEGMENT, QUANT),
+ * S thresholds as in SpatDist (sstart, sstep, send (or dst), slist), threads (comparisons at a time),
+ * cache (true: .swcb binary cache), budget (MB of the in-memory SwcCache),
+ * tiled (true: bounded-memory TiledDist comparison, the files are not cached, mask, step and the SEGMENT and QUANT search are not used),
+ * step (resampling arc-length step, 0: not resampled), scale (QUANT grid steps per coordinate unit, 0: detected, power of two grids only, as in SpatDist),
+ * eps (approximate KDTREE search bound, 0: exact, above 0 adds the EPS column, as in SpatDist),
+ * breakdown (true: per branch, component and type distances at the largest S into <out>_breakdown.csv, not with tiled)
+ * comparisons are scheduled on a thread pool, every reconstruction is loaded once and reused through SwcCache,
+ * rows are written in the pair order: NAME (A), TAG (B) and the measures of NdistCalculator.compute(),
+ * all the pairs are scheduled in square blocks of files that fit the cache budget together,
+ * failed comparisons are logged with both paths and main() exits with 1 if any of them failed
+ */
+public class BatchDist implements PlugIn {
+
+    // estimated heap bytes of a loaded reconstruction (with its k-d tree) per byte of the .swc file, sizes the all-pairs blocks
+    public static float HEAP_PER_FILE_BYTE = 6;
+
+    public static void main(String[] args) {
+
+        StringBuilder options = new StringBuilder();
+        for (String a : args) options.append(a).append(' ');
+
+        if (args.length==0) {
+            System.out.println("usage: BatchDist dir=<directory> [gold=<swc>] [out=<csv>] [send=2] [sstart=.5] [sstep=.5] [slist=1,2,5] " +
+                    "[mask=<tif>] [search=KDTREE|GRID|BRUTE|SEGMENT|QUANT] [threads=N] [cache=true] [budget=MB] [tiled=true] [step=0] [eps=0] [scale=0] [breakdown=true]");
+            return;
+        }
+
+        int failed = batch(options.toString());
+
+        System.exit((failed==0)? 0 : 1);
+
+    }
+
+    public void run(String s) {
+        if (Macro.getOptions()==null) {
+            IJ.log("BatchDist needs macro options (dir=... gold=...)");
+            return;
+        }
+        batch(Macro.getOptions());
+    }
+
+    /**
+     * @return number of failed comparisons, -1 if the batch did not run
+     */
+    public static int batch(String options) {
+
+        String  dir     = Macro.getValue(options, "dir",    "");
+        String  gold    = Macro.getValue(options, "gold",   "");
+        String  out     = Macro.getValue(options, "out",    new File(dir, "batch.csv").getPath());
+        String  maskpath= Macro.getValue(options, "mask",   "");
+        String  search  = Macro.getValue(options, "search", NdistCalculator.SEARCH[NdistCalculator.KDTREE]);
+        float   dst     = Float.valueOf(Macro.getValue(options, "dst",      Float.toString(2)));
+        dst             = Float.valueOf(Macro.getValue(options, "send",     Float.toString(dst)));
+        float   sstart  = Float.valueOf(Macro.getValue(options, "sstart",   Float.toString(.5f)));
+        float   sstep   = Float.valueOf(Macro.getValue(options, "sstep",    Float.toString(.5f)));
+        String  slist   = Macro.getValue(options, "slist",  "");
+        int     threads = Integer.valueOf(Macro.getValue(options, "threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        final boolean cache = Boolean.valueOf(Macro.getValue(options, "cache", "false"));
+        final boolean tiled = Boolean.valueOf(Macro.getValue(options, "tiled", "false"));
+        final float   step  = Float.valueOf(Macro.getValue(options, "step", Float.toString(0)));
+        float   eps     = Float.valueOf(Macro.getValue(options, "eps", Float.toString(0)));
+        final float scale = Math.max(Float.valueOf(Macro.getValue(options, "scale", Float.toString(0))), 0);
+        final boolean breakdown = Boolean.valueOf(Macro.getValue(options, "breakdown", "false"));
+        String  budget  = Macro.getValue(options, "budget", "");
+
+        if (!new File(dir).isDirectory()) {
+            IJ.log(dir + " is not a directory");
+            return -1;
+        }
+
+        final float[] sval = (slist.trim().isEmpty())? SpatDist.parseSweep(sstart, sstep, dst) : SpatDist.parseList(slist);
+        if (sval.length==0) {
+            IJ.log("No S thresholds to evaluate.");
+            return -1;
+        }
+
+        final ImagePlus mask = (maskpath.equals(""))? null : new ImagePlus(new File(maskpath).getAbsolutePath());
+        if (mask!=null && mask.getType()!=ImagePlus.GRAY8) {IJ.log("mask needs to be GRAY8"); return -1;}
+        if (mask!=null && tiled) IJ.log("warning: mask is not used with the tiled comparison");
+        if (step>0 && tiled) IJ.log("warning: step is not used with the tiled comparison");
+        if (breakdown && tiled) IJ.log("warning: breakdown is not available with the tiled comparison");
+
+        final int searchMode = SpatDist.searchMode(search);
+        if (tiled) SpatDist.warnTiledSearch(searchMode);
+        SpatDist.warnScale(scale, searchMode, tiled);
+        final float bound = (!tiled && searchMode==NdistCalculator.KDTREE)? Math.max(eps, 0) : 0; // eps is used by KDTREE only
+
+        if (!budget.equals("")) SwcCache.setBudget(Long.valueOf(budget)*(1L<<20));
+
+        ArrayList<String> files = new ArrayList<String>();
+        listSwc(new File(dir), files);
+
+        // pairs (A, B) in the output order, and the order they are compared in
+        ArrayList<String[]> pairs = new ArrayList<String[]>();
+        int[] order;
+        if (!gold.equals("")) {
+            String g = new File(gold).getAbsolutePath();
+            for (String f : files) if (!f.equals(g)) pairs.add(new String[]{f, g});
+            order = new int[pairs.size()];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+        }
+        else {
+            for (int i = 0; i < files.size(); i++)
+                for (int j = i+1; j < files.size(); j++) pairs.add(new String[]{files.get(i), files.get(j)});
+            order = blockOrder(files, (tiled)? files.size() : blockSize(files));
+        }
+
+        IJ.log("found " + files.size() + " files, " + pairs.size() + " comparisons");
+
+        long t1 = System.currentTimeMillis();
+        int failed = 0;
+
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(threads, 1));
+        ArrayList<Future<String[][]>> rows = new ArrayList<Future<String[][]>>(pairs.size());
+        for (int i = 0; i < pairs.size(); i++) rows.add(null);
+
+        for (int idx : order) {
+            final String[] p = pairs.get(idx);
+            rows.set(idx, exec.submit(new Callable<String[][]>() {
+                public String[][] call() throws IOException {
+                    return (tiled)? compareTiled(p[0], p[1], sval) : compare(p[0], p[1], sval, mask, searchMode, cache, step, bound, scale, breakdown);
+                }
+            }));
+        }
+
+        String bout = (out.toLowerCase().endsWith(".csv")? out.substring(0, out.length()-4) : out) + "_breakdown.csv";
+
+        exec.shutdown();
+
+        try {
+
+            PrintWriter logWriter = new PrintWriter(new BufferedWriter(new FileWriter(out)));
+            logWriter.println(SpatDist.legend(bound));
+
+            PrintWriter bWriter = (breakdown && !tiled)? new PrintWriter(new BufferedWriter(new FileWriter(bout))) : null;
+            if (bWriter!=null) bWriter.println(DistanceBreakdown.legend());
+
+            for (int i = 0; i < rows.size(); i++) {
+                try {
+                    String[][] res = rows.get(i).get();
+                    for (String line : res[0]) logWriter.println(line);
+                    if (bWriter!=null) for (String line : res[1]) bWriter.println(line);
+                }
+                catch (Exception e) {
+                    Throwable c = (e instanceof ExecutionException && e.getCause()!=null)? e.getCause() : e;
+                    IJ.log("error: " + pairs.get(i)[0] + " vs " + pairs.get(i)[1] + ": " + c);
+                    failed++;
+                }
+                if ((i+1)%100==0) IJ.log((i+1) + "/" + rows.size());
+            }
+
+            logWriter.close();
+            if (bWriter!=null) bWriter.close();
+
+        }
+        catch (IOException e) {
+            IJ.log("error: could not write " + out + " (" + e.getMessage() + ")");
+            exec.shutdownNow();
+            return -1;
+        }
+
+        long t2 = System.currentTimeMillis();
+
+        IJ.log(out + " (" + IJ.d2s((t2-t1)/1000f, 2) + " sec.)");
+        if (failed>0) IJ.log(failed + "/" + pairs.size() + " comparisons failed");
+
+        return failed;
+
+    }
+
+    // rows of one comparison and its breakdown rows (if asked for), none if either of the reconstructions is empty
+    private static String[][] compare(String swca, String swcb, float[] sval, ImagePlus mask, int search, boolean cache, float step, float eps, float scale, boolean breakdown) {
+
+        ReadSWC swcA = SwcCache.get(swca, false, cache);
+        ReadSWC swcB = SwcCache.get(swcb, false, cache);
+
+        if (swcA.nnodes.size()==0) {
+            IJ.log("Empty SWC:"+swca);
+            return new String[2][0];
+        }
+        if (swcB.nnodes.size()==0) {
+            IJ.log("Empty SWC:"+swcb);
+            return new String[2][0];
+        }
+
+        NdistCalculator calc = swcA.distances(swcB, mask, search, step, eps, scale);
+        float[][] meas = calc.compute(sval);
+
+        String atag = SpatDist.getFileName(swca);
+        String btag = SpatDist.getFileName(swcb);
+
+        String[] lines = new String[meas.length];
+        for (int i = 0; i < meas.length; i++) lines[i] = SpatDist.evalLine(atag, btag, meas[i], eps);
+
+        String[] blines = (breakdown)? SpatDist.breakdownLines(atag, btag, calc, swcA, swcB, sval[sval.length-1]) : new String[0];
+
+        return new String[][]{lines, blines};
+
+    }
+
+    private static String[][] compareTiled(String swca, String swcb, float[] sval) throws IOException {
+
+        float[][] meas = TiledDist.compare(swca, swcb, sval);
+
+        String[] lines = new String[meas.length];
+        for (int i = 0; i < meas.length; i++) lines[i] = SpatDist.evalLine(SpatDist.getFileName(swca), SpatDist.getFileName(swcb), meas[i], 0);
+
+        return new String[][]{lines, new String[0]};
+
+    }
+
+    // files per block: two blocks of average reconstructions fit the cache budget
+    private static int blockSize(ArrayList<String> files) {
+
+        long total = 0;
+        for (String f : files) total += new File(f).length();
+        if (total==0) return Math.max(files.size(), 1);
+
+        double avg = HEAP_PER_FILE_BYTE * (double) total / files.size();
+        long k = (long) (SwcCache.getBudget() / (2*avg));
+
+        return (int) Math.max(1, Math.min(k, files.size()));
+
+    }
+
+    /**
+     * indexes of the pairs i<j (numbered row by row) visited block by block: the k files of a block row
+     * against the k files of a block column, so that each block loads its 2k reconstructions once
+     * instead of a reload of every B for every A once the files exceed the cache
+     */
+    private static int[] blockOrder(ArrayList<String> files, int k) {
+
+        int n = files.size();
+        int[] order = new int[n*(n-1)/2];
+        int c = 0;
+
+        for (int bi = 0; bi < n; bi += k)
+            for (int bj = bi; bj < n; bj += k)
+                for (int i = bi; i < Math.min(bi+k, n); i++)
+                    for (int j = Math.max(bj, i+1); j < Math.min(bj+k, n); j++)
+                        order[c++] = i*n - i*(i+1)/2 + (j-i-1); // row i starts after the n-1, n-2 ... pairs of the rows before
+
+        return order;
+
+    }
+
+    // .swc files under the directory, sorted by path
+    private static void listSwc(File dir, ArrayList<String> files) {
+
+        File[] fList = dir.listFiles();
+        if (fList==null) return;
+
+        Arrays.sort(fList);
+
+        for (File f : fList) {
+            if (f.isDirectory())                                    listSwc(f, files);
+            else if (f.getName().toLowerCase().endsWith(".swc"))    files.add(f.getAbsolutePath());
+        }
+
+    }
+
+}
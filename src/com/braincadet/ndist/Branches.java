@@ -0,0 +1,147 @@
+package com.braincadet.ndist;
+
+import java.util.Arrays;
+
+/**
+ * branches of a node table: the chains of links between the critical nodes (degree other than 2)
+ * walked from the smallest node of every component (Components), each link belongs to one branch,
+ * degree 2 nodes belong to their chain, a critical node to the branch it was reached through (its parent branch),
+ * the component root to the first branch that leaves it, nodes without links are branches of their own
+ * branches are numbered in the walk order, so the numbering is the same for the same table
+ */
+public class Branches {
+
+    public int      count;      // number of branches
+    public int[]    branch;     // node -> branch
+    public int[]    link;       // link slot (NodeTable.nbr index) -> branch, -1 if the link was not walked
+    public int[]    component;  // branch -> component
+    public int[]    nodes;      // branch -> number of nodes attributed to it
+    public float[]  length;     // branch -> arc length of its links
+
+    public Branches(NodeTable t, Components comps) {
+
+        branch = new int[t.n];
+        Arrays.fill(branch, -1);
+        link = new int[t.nbr.length];
+        Arrays.fill(link, -1);
+
+        int[] rev = t.reverse();
+        long[] walked = new long[(t.nbr.length+63)>>>6]; // links (both directions) that belong to a branch
+
+        int cap = Math.max(16, comps.count);
+        component = new int[cap];
+        length = new float[cap];
+
+        int[] queue = new int[Math.max(t.n, 1)]; // critical nodes whose links are walked, every node is queued once
+        int nb = 0;
+
+        for (int c = 0; c < comps.count; c++) {
+
+            int root = comps.nodes[comps.start[c]];
+
+            int head = 0, tail = 0;
+            queue[tail++] = root;
+
+            if (t.degree(root)==0) {
+                if (nb==component.length) grow();
+                component[nb] = c;
+                branch[root] = nb++;
+                continue;
+            }
+
+            while (head<tail) {
+
+                int s = queue[head++];
+
+                for (int j = t.nbr0[s]; j < t.nbr0[s+1]; j++) {
+
+                    if (walked(walked, rev, j)) continue;
+
+                    if (nb==component.length) grow();
+                    int b = nb++;
+                    component[b] = c;
+                    if (branch[s]<0) branch[s] = b; // root
+
+                    double len = 0;
+                    int prev = s, k = j;
+
+                    while (true) {
+
+                        int curr = t.nbr[k];
+                        set(walked, k);
+                        link[k] = b;
+                        if (rev[k]>=0) {
+                            set(walked, rev[k]);
+                            link[rev[k]] = b;
+                        }
+                        len += dist(t, prev, curr);
+
+                        if (branch[curr]>=0) break; // back on the walked part (loop)
+
+                        branch[curr] = b;
+
+                        // one-directional link (rev[k]<0): curr has no slot back to prev, so "the other link"
+                        // is not defined, the chain ends at curr and its links are walked as branches of their own
+                        if (t.degree(curr)!=2 || rev[k]<0) {
+                            queue[tail++] = curr;
+                            break;
+                        }
+
+                        // other link of the chain
+                        int next = (t.nbr0[curr]!=rev[k])? t.nbr0[curr] : t.nbr0[curr]+1;
+                        if (walked(walked, rev, next)) break; // also a repeated slot of the same link
+                        prev = curr;
+                        k = next;
+
+                    }
+
+                    length[b] = (float) len;
+
+                }
+
+            }
+
+        }
+
+        // nodes only reachable through one-directional links (inconsistent table) are branches of their own
+        for (int i = 0; i < t.n; i++) {
+            if (branch[i]<0) {
+                if (nb==component.length) grow();
+                component[nb] = comps.comp[i];
+                branch[i] = nb++;
+            }
+        }
+
+        count = nb;
+        component = Arrays.copyOf(component, nb);
+        length = Arrays.copyOf(length, nb);
+
+        nodes = new int[nb];
+        for (int i = 0; i < t.n; i++) nodes[branch[i]]++;
+
+    }
+
+    private void grow() {
+        component = Arrays.copyOf(component, 2*component.length);
+        length = Arrays.copyOf(length, 2*length.length);
+    }
+
+    // slot j or its reverse direction already belongs to a branch
+    private static boolean walked(long[] bits, int[] rev, int j) {
+        return isSet(bits, j) || (rev[j]>=0 && isSet(bits, rev[j]));
+    }
+
+    private static boolean isSet(long[] bits, int i) {
+        return (bits[i>>>6] & (1L<<i))!=0;
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i>>>6] |= 1L<<i;
+    }
+
+    private static double dist(NodeTable t, int i, int j) {
+        double dx = t.x[i]-t.x[j], dy = t.y[i]-t.y[j], dz = t.z[i]-t.z[j];
+        return Math.sqrt(dx*dx + dy*dy + dz*dz);
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.braincadet.ndist;
+
+import ij.IJ;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * buffered text output for the node exports: numbers are written straight into a char buffer,
+ * fixed-point values give the same text as IJ.d2s() (DecimalFormat "0.000", HALF_EVEN rounding, HALF_UP without decimals)
+ * float values with up to 9 decimals are scaled exactly in double (24-bit significand times 10^d)
+ * and rounded on the exact value (Math.rint() is half-even), everything else (other doubles, NaN, infinite,
+ * very large values) goes through IJ.d2s() itself
+ */
+public class BufferedFormatter {
+
+    public static int BUFFER_SIZE = 1<<16; // chars collected before they are written out
+
+    private static final double[] POW10 = new double[]{1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+    private static final double   EXACT = 9007199254740992.0; // 2^53, larger scaled values are not formatted here
+
+    private Writer          out;
+    private StringBuilder   buf = new StringBuilder(BUFFER_SIZE);
+
+    /**
+     * new (or truncated) file
+     */
+    public BufferedFormatter(String path) throws IOException {
+        out = new FileWriter(path);
+    }
+
+    public BufferedFormatter print(String s) {
+        buf.append(s);
+        return check();
+    }
+
+    public BufferedFormatter print(char c) {
+        buf.append(c);
+        return check();
+    }
+
+    public BufferedFormatter print(long v) {
+        buf.append(v);
+        return check();
+    }
+
+    /**
+     * v with the given number of decimals, as IJ.d2s(v, decimals)
+     */
+    public BufferedFormatter print(double v, int decimals) {
+        if (!fixed(buf, v, decimals)) buf.append(IJ.d2s(v, decimals));
+        return check();
+    }
+
+    public BufferedFormatter println() {
+        buf.append('\n');
+        return check();
+    }
+
+    private BufferedFormatter check() {
+        if (buf.length()>=BUFFER_SIZE) flush();
+        return this;
+    }
+
+    private void flush() {
+        try {
+            out.write(buf.toString());
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buf.setLength(0);
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        }
+        catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+        out.close();
+    }
+
+    /**
+     * same text as IJ.d2s(v, decimals)
+     */
+    public static String d2s(double v, int decimals) {
+        StringBuilder sb = new StringBuilder(24);
+        return (fixed(sb, v, decimals))? sb.toString() : IJ.d2s(v, decimals);
+    }
+
+    // append v with the given decimals if it can be done exactly here, false otherwise (nothing appended)
+    private static boolean fixed(StringBuilder sb, double v, int decimals) {
+
+        if (decimals<0 || decimals>9 || (float)v!=v || v==Float.MAX_VALUE) return false; // also NaN
+
+        double scaled = v*POW10[decimals]; // exact: float significand (24 bits) times 5^decimals (<= 21 bits)
+        if (!(Math.abs(scaled)<EXACT)) return false;
+
+        long q = (decimals>0)? (long) Math.rint(Math.abs(scaled)) : (long) Math.floor(Math.abs(scaled) + .5); // +.5 is exact for floats
+        boolean negative = v<0 || (v==0 && 1/v<0); // DecimalFormat keeps the sign of values that round to 0
+
+        if (negative) sb.append('-');
+
+        long ip = q, fp = 0;
+        if (decimals>0) {
+            long p = (long) POW10[decimals];
+            ip = q/p;
+            fp = q%p;
+        }
+
+        sb.append(ip);
+
+        if (decimals>0) {
+            sb.append('.');
+            for (int k = decimals-1; k >= 0; k--) {
+                sb.append((char) ('0' + (fp/(long)POW10[k])%10));
+            }
+        }
+
+        return true;
+
+    }
+
+}
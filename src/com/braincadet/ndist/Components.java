@@ -0,0 +1,122 @@
+package com.braincadet.ndist;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * connected components of a node table, labelled with a concurrent union-find over its links
+ * (fork/join tasks on NdistCalculator.getPool(), links of different node ranges are joined in parallel)
+ * roots are always linked under the smaller root, so every component is represented by its smallest node index,
+ * components are numbered in the order of their smallest nodes, nodes without links are components of their own
+ * nodes of component c are nodes[start[c]] .. nodes[start[c+1]-1], in ascending index
+ */
+public class Components {
+
+    public static int MIN_CHUNK = 1<<14;    // tasks stop splitting below this many nodes
+
+    public int      count;      // number of components
+    public int[]    comp;       // node -> component
+    public int[]    start;      // count+1 offsets into nodes
+    public int[]    nodes;      // node indexes grouped by component
+
+    private Components() {
+    }
+
+    public static Components label(NodeTable t) {
+
+        AtomicIntegerArray parent = new AtomicIntegerArray(t.n);
+        for (int i = 0; i < t.n; i++) parent.lazySet(i, i);
+
+        NdistCalculator.getPool().invoke(new UnionTask(t, parent, 0, t.n, false));
+        NdistCalculator.getPool().invoke(new UnionTask(t, parent, 0, t.n, true)); // parent[i] is the root afterwards
+
+        Components c = new Components();
+        c.comp = new int[t.n];
+
+        // roots are the smallest nodes, they are met first
+        int cnt = 0;
+        for (int i = 0; i < t.n; i++) {
+            int r = parent.get(i);
+            c.comp[i] = (r==i)? cnt++ : c.comp[r];
+        }
+
+        c.count = cnt;
+        c.start = new int[cnt+1];
+        for (int i = 0; i < t.n; i++) c.start[c.comp[i]+1]++;
+        for (int k = 0; k < cnt; k++) c.start[k+1] += c.start[k];
+
+        c.nodes = new int[t.n];
+        int[] fill = new int[cnt];
+        for (int i = 0; i < t.n; i++) c.nodes[c.start[c.comp[i]] + fill[c.comp[i]]++] = i;
+
+        return c;
+
+    }
+
+    public int size(int c) {
+        return start[c+1] - start[c];
+    }
+
+    // root of x with path halving (parents only ever move to smaller indexes)
+    static int find(AtomicIntegerArray parent, int x) {
+        int p;
+        while ((p = parent.get(x))!=x) {
+            int gp = parent.get(p);
+            if (gp!=p) parent.compareAndSet(x, p, gp);
+            x = gp;
+        }
+        return x;
+    }
+
+    static void union(AtomicIntegerArray parent, int a, int b) {
+        while (true) {
+            a = find(parent, a);
+            b = find(parent, b);
+            if (a==b) return;
+            if (a>b) {
+                int tmp = a;
+                a = b;
+                b = tmp;
+            }
+            if (parent.compareAndSet(b, b, a)) return; // b was still a root
+        }
+    }
+
+}
+
+class UnionTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private NodeTable t;
+    private AtomicIntegerArray parent;
+    private int beg, end;
+    private boolean flatten; // point every node at its root instead of joining the links
+
+    UnionTask(NodeTable t, AtomicIntegerArray parent, int beg, int end, boolean flatten) {
+        this.t = t;
+        this.parent = parent;
+        this.beg = beg;
+        this.end = end;
+        this.flatten = flatten;
+    }
+
+    protected void compute() {
+
+        if (end-beg<=Components.MIN_CHUNK) {
+            for (int i = beg; i < end; i++) {
+                if (flatten) parent.set(i, Components.find(parent, i));
+                else {
+                    for (int j = t.nbr0[i]; j < t.nbr0[i+1]; j++)
+                        Components.union(parent, i, t.nbr[j]); // both directions, one-directional links join too
+                }
+            }
+            return;
+        }
+
+        int mid = (beg+end)>>>1;
+        invokeAll(new UnionTask(t, parent, beg, mid, flatten), new UnionTask(t, parent, mid, end, flatten));
+
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.braincadet.ndist;
+
+/**
+ * closest node distances of one side of a comparison (A->B over the nodes of A, or B->A over the nodes of B)
+ * aggregated per branch, per component (Branches, Components of the reconstruction) and per node type,
+ * in one pass over the distances NdistCalculator.run() computed (the search is not repeated)
+ * table nodes are mapped through NodeTable.id (masked and resampled tables keep it), resampled nodes through the
+ * link they lie on (NodeTable.link, Branches.link), so that they count in the branch of their chain, distances are taken as
+ * DistanceSweep takes them (float square root), so the totals agree with the global measures
+ */
+public class DistanceBreakdown {
+
+    public static int BRANCH    = 0;
+    public static int COMPONENT = 1;
+    public static int TYPE      = 2;
+    public static String[] GROUP = new String[]{"BRANCH", "COMPONENT", "TYPE"};
+
+    public float        s;          // threshold of the SSD columns
+    public int[][]      count;      // [group kind][group] number of nodes
+    public double[][]   sum;        // sum of the distances
+    public int[][]      above;      // number of distances d>=s
+    public double[][]   sumAbove;   // sum of the distances d>=s
+    public float[][]    max;        // largest distance
+
+    private Branches branches;
+    private float[]  compLength;    // component -> arc length of its branches
+
+    /**
+     * @param d2    squared closest node distances of the nodes of nlist (NdistCalculator.dAB or dBA)
+     * @param nlist table the distances belong to (NdistCalculator.nlistA or nlistB)
+     * @param swc   reconstruction the table was taken from
+     */
+    public DistanceBreakdown(float[] d2, NodeTable nlist, ReadSWC swc, float s) {
+
+        this.s = s;
+        branches = swc.branches();
+
+        int[] size = new int[]{branches.count, swc.components().count, 256};
+        count       = new int[3][];
+        sum         = new double[3][];
+        above       = new int[3][];
+        sumAbove    = new double[3][];
+        max         = new float[3][];
+        for (int g = 0; g < 3; g++) {
+            count[g]    = new int[size[g]];
+            sum[g]      = new double[size[g]];
+            above[g]    = new int[size[g]];
+            sumAbove[g] = new double[size[g]];
+            max[g]      = new float[size[g]];
+        }
+
+        compLength = new float[size[COMPONENT]];
+        for (int b = 0; b < branches.count; b++) compLength[branches.component[b]] += branches.length[b];
+
+        for (int i = 0; i < nlist.n; i++) {
+
+            float d = (float) Math.sqrt(d2[i]);
+            int b = branch(nlist, i);
+
+            add(BRANCH,     b,                          d);
+            add(COMPONENT,  branches.component[b],      d);
+            add(TYPE,       nlist.type[i] & 0xff,       d);
+
+        }
+
+    }
+
+    // branch of the table node, the branch of its source link for the resampled ones
+    private int branch(NodeTable nlist, int i) {
+        int s = (nlist.link!=null)? nlist.link[i] : -1;
+        return (s>=0 && branches.link[s]>=0)? branches.link[s] : branches.branch[nlist.id[i]];
+    }
+
+    private void add(int g, int k, float d) {
+        count[g][k]++;
+        sum[g][k] += d;
+        if (d>=s) {
+            above[g][k]++;
+            sumAbove[g][k] += d;
+        }
+        if (d>max[g][k]) max[g][k] = d;
+    }
+
+    public static String legend() {
+        return String.format("%15s,%s,%s,%10s,%10s,%10s,%10s,%10s,%10s,%10s,%10s,%10s,%10s", "NAME", "TAG", "SIDE", "GROUP", "ID", "COMPONENT", "LENGTH", "NODES", "SD", "S", "SSD", "percSSD", "MAX");
+    }
+
+    /**
+     * one row per group with nodes: mean distance (SD), mean distance above s (SSD), fraction above s (percSSD)
+     * and the largest distance, branches and components also give their component and arc length (-1 and NaN for types)
+     * @param side A (distances A->B) or B (distances B->A)
+     */
+    public String[] lines(String name, String tag, String side) {
+
+        int n = 0;
+        for (int g = 0; g < 3; g++) for (int k = 0; k < count[g].length; k++) if (count[g][k]>0) n++;
+
+        String[] out = new String[n];
+        int i = 0;
+
+        for (int g = 0; g < 3; g++) {
+            for (int k = 0; k < count[g].length; k++) {
+
+                if (count[g][k]==0) continue;
+
+                int     comp    = (g==BRANCH)? branches.component[k] : ((g==COMPONENT)? k : -1);
+                float   len     = (g==BRANCH)? branches.length[k] : ((g==COMPONENT)? compLength[k] : Float.NaN);
+                float   sd      = (float) (sum[g][k]/count[g][k]);
+                float   ssd     = (above[g][k]>0)? (float) (sumAbove[g][k]/above[g][k]) : 0;
+                float   perc    = (float) above[g][k]/count[g][k];
+
+                out[i++] = String.format("%15s,%s,%s,%10s,%10d,%10d,%10.3f,%10d,%10.3f,%.3f,%10.3f,%10.3f,%10.3f",
+                        name, tag, side, GROUP[g], k, comp, len, count[g][k], sd, s, ssd, perc, max[g][k]);
+
+            }
+        }
+
+        return out;
+
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.braincadet.ndist;
+
+import java.util.Arrays;
+
+/**
+ * closest node distances prepared for the threshold sweep of NdistCalculator.compute()
+ * square root is taken once, distances are sorted and the tail sums are accumulated,
+ * so the count and the sum of the distances above any threshold S come from one binary search
+ */
+public class DistanceSweep {
+
+    public int      n;          // number of distances
+    public float    sum;        // sum of all distances, accumulated in the input order
+
+    private float[]  d;         // sorted distances, NaN (if any) at the end
+    private double[] tail;      // tail[k] = d[k] + ... + d[valid-1]
+    private int      valid;     // number of distances that are not NaN
+
+    protected DistanceSweep() {
+    }
+
+    /**
+     * @param d2 squared distances
+     */
+    public DistanceSweep(float[] d2) {
+
+        n = d2.length;
+        d = new float[n];
+
+        sum = 0;
+        for (int i = 0; i < n; i++) {
+            d[i] = (float) Math.sqrt(d2[i]);
+            sum += d[i];
+        }
+
+        Arrays.sort(d);
+
+        valid = n;
+        while (valid>0 && Float.isNaN(d[valid-1])) valid--;
+
+        tail = new double[valid+1];
+        for (int k = valid-1; k >= 0; k--) tail[k] = tail[k+1] + d[k];
+
+    }
+
+    // index of the first distance >= s
+    private int first(float s) {
+        int lo = 0, hi = valid;
+        while (lo<hi) {
+            int mid = (lo+hi)>>>1;
+            if (d[mid]>=s)  hi = mid;
+            else            lo = mid+1;
+        }
+        return lo;
+    }
+
+    /**
+     * number of distances d>=s
+     */
+    public int countAbove(float s) {
+        return valid - first(s);
+    }
+
+    /**
+     * sum of the distances d>=s
+     */
+    public double sumAbove(float s) {
+        return tail[first(s)];
+    }
+
+}
@@ -58,12 +58,12 @@ public class ExportN0 implements PlugIn {
 
         int limit = reader.nnodes.size();//reader.nnodes.size();//reader.nnodes.size() / 20;
 
-        int INTERVAL = limit/10; // export video each INTERVAL
+        int INTERVAL = Math.max(limit/10, 1); // export video each INTERVAL
 
         // go through the frames (i.e. overcomplete reconstruction nodes)
-        for (int i = 1; i < limit; i++) {
+        for (int i = 0; i < limit; i++) {
 
-            if (i%INTERVAL==0) IJ.log((10 * (i/INTERVAL)) + "%");
+            if (i>0 && i%INTERVAL==0) IJ.log((10 * (i/INTERVAL)) + "%");
 
             float x = reader.nnodes.get(i).x;
             float y = reader.nnodes.get(i).y;
@@ -109,7 +109,7 @@ public class ExportN0 implements PlugIn {
             frame = frame.flatten();
             is_out_join.addSlice(""+IJ.d2s(i,0),frame.getProcessor());
 
-            if (i%INTERVAL==0 || i==limit-1) {
+            if ((i>0 && i%INTERVAL==0) || i==limit-1) { // not at i=0, the first video ends at INTERVAL as before
                 if (is_out_join.getSize()>0) {
 
                     IJ.log("saving video...");
@@ -10,10 +10,17 @@ import java.io.File;
 import java.util.ArrayList;
 
 /**
- *
+ * node exports of a swc file (or of all the swc files under a directory), written next to the file:
+ * _bif.swc (nodes with 3 or more neighbours), _term.swc (nodes with at most one neighbour, terminals=true)
+ * and _branches.csv (arc length of every branch, branches=true)
+ * every file is read once (through SwcCache), all the exports come from its Topology and Branches
+ * macro keys: swcin, terminals, branches
  */
 public class ExtractBifs implements PlugIn {
 
+    private boolean terminals = true;
+    private boolean branches = true;
+
     @Override
     public void run(String s) {
 
@@ -22,12 +29,18 @@ public class ExtractBifs implements PlugIn {
         if (Macro.getOptions()==null) {
             GenericDialog gd = new GenericDialog("BIFURCATION");
             gd.addStringField("swcin", 	    Prefs.get("com.braincadet.ndist.swcin", System.getProperty("user.home")), 80);
+            gd.addCheckbox("terminals",     Prefs.get("com.braincadet.ndist.terminals", true));
+            gd.addCheckbox("branches",      Prefs.get("com.braincadet.ndist.branches", true));
             gd.showDialog();
             if (gd.wasCanceled()) return;
             swcIn	= gd.getNextString();       Prefs.set("com.braincadet.ndist.swcin", swcIn);
+            terminals = gd.getNextBoolean();    Prefs.set("com.braincadet.ndist.terminals", terminals);
+            branches = gd.getNextBoolean();     Prefs.set("com.braincadet.ndist.branches", branches);
         }
         else {
             swcIn     = Macro.getValue(Macro.getOptions(), "swcin",    "");
+            terminals = Boolean.valueOf(Macro.getValue(Macro.getOptions(), "terminals", "true"));
+            branches  = Boolean.valueOf(Macro.getValue(Macro.getOptions(), "branches", "true"));
         }
 
         String swcpath1 = new File(swcIn).getAbsolutePath(); // path to swc file
@@ -72,16 +85,33 @@ public class ExtractBifs implements PlugIn {
         IJ.log("");
         IJ.log(swcFilePath);
 
-        ReadSWC swcA = new ReadSWC(swcFilePath, false);
+        ReadSWC swcA = SwcCache.get(swcFilePath, false, false);
 
         IJ.log(swcA.nnodes.size() + " nodes");
 
-        String swcOut = removeFileExtension(swcFilePath) + "_bif." + getFileExtension(swcFilePath);
+        Topology tp = swcA.topology();
+        StringBuilder classes = new StringBuilder();
+        for (int c = 0; c < Topology.CLASS.length; c++) classes.append((c>0)? ", " : "").append(Topology.CLASS[c]).append('=').append(tp.count(c));
+        IJ.log(classes.toString());
 
-        swcA.getBifurcations(swcOut);
+        String base = removeFileExtension(swcFilePath);
 
+        String swcOut = base + "_bif." + getFileExtension(swcFilePath);
+        swcA.getBifurcations(swcOut);
         IJ.log(swcOut);
 
+        if (terminals) {
+            String termOut = base + "_term." + getFileExtension(swcFilePath);
+            swcA.getTerminals(termOut);
+            IJ.log(termOut);
+        }
+
+        if (branches) {
+            String brOut = base + "_branches.csv";
+            swcA.getBranchLengths(brOut);
+            IJ.log(brOut);
+        }
+
     }
 
     public void listFilesInDirectory(String directoryName, ArrayList<File> files) {
@@ -0,0 +1,90 @@
+package com.braincadet.ndist;
+
+import java.util.Arrays;
+
+/**
+ * swc id -> node index map on primitive arrays (open addressing, linear probing)
+ * memory grows with the number of ids, not with their largest value
+ * values are non-negative indexes, get() returns -1 for the ids that are not in the map
+ */
+public class IdMap {
+
+    private static int EMPTY = Integer.MIN_VALUE; // key of the free slots (swc ids are never negative)
+
+    private int[]   keys;
+    private int[]   vals;
+    private int     mask;   // table size - 1
+    private int     size;
+
+    public IdMap(int capacity) {
+        int cap = 16;
+        while (cap<2L*capacity && cap<(1<<30)) cap <<= 1; // load factor <= 0.5
+        keys = new int[cap];
+        vals = new int[cap];
+        Arrays.fill(keys, EMPTY);
+        mask = cap-1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(int key) {
+        long k = key;
+        // 64 bit finalizer (murmur3), consecutive ids end up spread over the table
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        int s = (int) k & mask;
+        while (keys[s]!=EMPTY && keys[s]!=key) s = (s+1) & mask;
+        return s;
+    }
+
+    public int get(int key) {
+        if (key==EMPTY) return -1;
+        int s = slot(key);
+        return (keys[s]==key)? vals[s] : -1;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key)>=0;
+    }
+
+    /**
+     * set the index of the id (overwrites the previous one)
+     */
+    public void put(int key, int val) {
+
+        if (2*(size+1)>keys.length) rehash(2*keys.length);
+
+        int s = slot(key);
+        if (keys[s]==EMPTY) {
+            keys[s] = key;
+            size++;
+        }
+        vals[s] = val;
+
+    }
+
+    private void rehash(int cap) {
+
+        int[] k0 = keys, v0 = vals;
+
+        keys = new int[cap];
+        vals = new int[cap];
+        Arrays.fill(keys, EMPTY);
+        mask = cap-1;
+
+        for (int i = 0; i < k0.length; i++) {
+            if (k0[i]!=EMPTY) {
+                int s = slot(k0[i]);
+                keys[s] = k0[i];
+                vals[s] = v0[i];
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.braincadet.ndist;
+
+import java.util.Arrays;
+
+/**
+ * 3d k-d tree over the node coordinates, used for the nearest neighbour queries of the spatial distance
+ * tree is implicit: points are reordered so that every subtree covers a contiguous range [lo, hi),
+ * the splitting point of the range is stored at its middle index mid=(lo+hi)/2
+ * built once per node list, read-only afterwards (can be queried from several threads)
+ */
+public class KdTree {
+
+    private static int LEAF_SIZE = 8;   // ranges with this many points or less are scanned
+
+    float[] x, y, z;                    // reordered coordinates
+    byte[]  axis;                       // splitting axis (0,1,2) of the range whose middle index is mid
+    private int     n;
+
+    public KdTree(NodeTable nlist) {
+
+        n = nlist.n;
+
+        // copies, the tree reorders them
+        x = Arrays.copyOf(nlist.x, n);
+        y = Arrays.copyOf(nlist.y, n);
+        z = Arrays.copyOf(nlist.z, n);
+
+        axis = new byte[n];
+
+        build(0, n);
+
+    }
+
+    /**
+     * tree that was built before (arrays as stored by SwcBinary), used as they are
+     */
+    KdTree(float[] x, float[] y, float[] z, byte[] axis) {
+        this.n      = x.length;
+        this.x      = x;
+        this.y      = y;
+        this.z      = z;
+        this.axis   = axis;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    private void build(int lo, int hi) {
+
+        if (hi-lo<=LEAF_SIZE) return;
+
+        // split along the axis with the largest extent
+        float x0 = Float.POSITIVE_INFINITY, x1 = Float.NEGATIVE_INFINITY;
+        float y0 = Float.POSITIVE_INFINITY, y1 = Float.NEGATIVE_INFINITY;
+        float z0 = Float.POSITIVE_INFINITY, z1 = Float.NEGATIVE_INFINITY;
+
+        for (int i = lo; i < hi; i++) {
+            x0 = (x[i]<x0)? x[i] : x0;
+            x1 = (x[i]>x1)? x[i] : x1;
+            y0 = (y[i]<y0)? y[i] : y0;
+            y1 = (y[i]>y1)? y[i] : y1;
+            z0 = (z[i]<z0)? z[i] : z0;
+            z1 = (z[i]>z1)? z[i] : z1;
+        }
+
+        byte ax = 0;
+        if (y1-y0>x1-x0) ax = 1;
+        if (z1-z0>((ax==0)?(x1-x0):(y1-y0))) ax = 2;
+
+        int mid = (lo+hi)>>>1;
+        select(lo, hi-1, mid, coord(ax));
+        axis[mid] = ax;
+
+        build(lo, mid);
+        build(mid+1, hi);
+
+    }
+
+    private float[] coord(int ax) {
+        return (ax==0)? x : ((ax==1)? y : z);
+    }
+
+    /**
+     * quickselect: reorder [lo, hi] so that c[k] is in its sorted position,
+     * with c[lo..k-1] <= c[k] <= c[k+1..hi]
+     */
+    private void select(int lo, int hi, int k, float[] c) {
+
+        while (hi>lo) {
+
+            // median of three as pivot
+            int m = (lo+hi)>>>1;
+            if (c[m]<c[lo]) swap(m, lo);
+            if (c[hi]<c[lo]) swap(hi, lo);
+            if (c[hi]<c[m]) swap(hi, m);
+            float pivot = c[m];
+
+            int i = lo, j = hi;
+            while (i<=j) {
+                while (c[i]<pivot) i++;
+                while (c[j]>pivot) j--;
+                if (i<=j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            if (k<=j)       hi = j;
+            else if (k>=i)  lo = i;
+            else            return;
+
+        }
+
+    }
+
+    private void swap(int i, int j) {
+        float t;
+        t = x[i]; x[i] = x[j]; x[j] = t;
+        t = y[i]; y[i] = y[j]; y[j] = t;
+        t = z[i]; z[i] = z[j]; z[j] = t;
+    }
+
+    /**
+     * squared euclidean distance from (qx,qy,qz) towards the closest point of the tree,
+     * computed as (qx-px)^2+(qy-py)^2+(qz-pz)^2 in float so that it matches the brute-force scan exactly
+     */
+    public float nearest2(float qx, float qy, float qz) {
+        if (n==0) return Float.POSITIVE_INFINITY;
+        return search(0, n, qx, qy, qz, Float.POSITIVE_INFINITY, 1f);
+    }
+
+    /**
+     * approximate nearest2(): the far side of a split is skipped unless it can be closer than best/(1+eps)^2,
+     * so the returned distance is at most (1+eps) times the true one (eps=0 gives the exact search)
+     */
+    public float nearest2(float qx, float qy, float qz, float eps) {
+        if (n==0) return Float.POSITIVE_INFINITY;
+        return search(0, n, qx, qy, qz, Float.POSITIVE_INFINITY, (1+eps)*(1+eps));
+    }
+
+    // f: pruning factor (1+eps)^2, f=1 compares diff*diff with best exactly as the plain search
+    private float search(int lo, int hi, float qx, float qy, float qz, float best, float f) {
+
+        if (hi-lo<=LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                float dx = qx - x[i];
+                float dy = qy - y[i];
+                float dz = qz - z[i];
+                float d2 = dx*dx + dy*dy + dz*dz;
+                if (d2<best) best = d2;
+            }
+            return best;
+        }
+
+        int mid = (lo+hi)>>>1;
+
+        float dx = qx - x[mid];
+        float dy = qy - y[mid];
+        float dz = qz - z[mid];
+        float d2 = dx*dx + dy*dy + dz*dz;
+        if (d2<best) best = d2;
+
+        float diff = (axis[mid]==0)? dx : ((axis[mid]==1)? dy : dz);
+
+        // nearer side first, the other one only if the splitting plane is closer than the current best
+        // (rounding is monotone, so a point behind the plane can never score below diff*diff)
+        if (diff<0) {
+            best = search(lo, mid, qx, qy, qz, best, f);
+            if (diff*diff*f<best) best = search(mid+1, hi, qx, qy, qz, best, f);
+        }
+        else {
+            best = search(mid+1, hi, qx, qy, qz, best, f);
+            if (diff*diff*f<best) best = search(lo, mid, qx, qy, qz, best, f);
+        }
+
+        return best;
+
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.braincadet.ndist;
+
+/**
+ * brute-force kernels for the minimum squared distance from a query point towards a range of points
+ * stored as primitive coordinate arrays (NodeTable.x, y, z)
+ * the vector kernel is a branch-free Math.min reduction that the JIT (C2 superword) compiles into
+ * packed SIMD instructions (8 lanes with AVX2, 16 with AVX-512), the scalar kernel with the compare
+ * and branch is kept for short ranges and for the NaN coordinates, where Math.min would propagate NaN
+ * both use the same float arithmetic and min is order independent, so the results are identical
+ */
+public class MinDistKernel {
+
+    public static int MIN_VECTOR_LENGTH = 64;   // ranges shorter than this use the scalar kernel
+
+    /**
+     * minimum of (qx-x[i])^2+(qy-y[i])^2+(qz-z[i])^2 over i in [lo, hi), kernel chosen by the range length
+     */
+    public static float min2(float qx, float qy, float qz, float[] x, float[] y, float[] z, int lo, int hi) {
+        if (hi-lo<MIN_VECTOR_LENGTH) return scalar(qx, qy, qz, x, y, z, lo, hi);
+        float m = vector(qx, qy, qz, x, y, z, lo, hi);
+        return (m!=m)? scalar(qx, qy, qz, x, y, z, lo, hi) : m; // NaN: scalar loop skips those elements
+    }
+
+    public static float scalar(float qx, float qy, float qz, float[] x, float[] y, float[] z, int lo, int hi) {
+        float best = Float.POSITIVE_INFINITY;
+        for (int i = lo; i < hi; i++) {
+            float dx = qx - x[i];
+            float dy = qy - y[i];
+            float dz = qz - z[i];
+            float d2 = dx*dx + dy*dy + dz*dz;
+            if (d2<best) best = d2;
+        }
+        return best;
+    }
+
+    public static float vector(float qx, float qy, float qz, float[] x, float[] y, float[] z, int lo, int hi) {
+        float best = Float.POSITIVE_INFINITY;
+        for (int i = lo; i < hi; i++) {
+            float dx = qx - x[i];
+            float dy = qy - y[i];
+            float dz = qz - z[i];
+            best = Math.min(best, dx*dx + dy*dy + dz*dz);
+        }
+        return best;
+    }
+
+}
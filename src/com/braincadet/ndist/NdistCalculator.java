@@ -3,207 +3,298 @@ package com.braincadet.ndist;
 import ij.IJ;
 import ij.ImagePlus;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-public class NdistCalculator extends Thread {
+/**
+ * spatial distance between two node lists (A, B): closest node distances A->B, B->A and the measures computed from them
+ * one instance per comparison, it owns its lists, search structures and distance buffers,
+ * so several comparisons can be evaluated at the same time
+ * run() computes the distance buffers as fork/join tasks (NdistTask) on a pool shared by all comparisons
+ */
+public class NdistCalculator {
 
+    public NodeTable nlistA;
+    public NodeTable nlistB;
 
-    private int begA, endA, begB, endB;
-    public static ArrayList<Node> nlistA = new ArrayList<Node>();
-    public static ArrayList<Node> nlistB = new ArrayList<Node>();
+    public float[] dAB;
+    public float[] dBA;
 
-    public static float[] dAB;
-    public static float[] dBA;
+    // nearest neighbour search engines
+    public static int KDTREE    = 0;
+    public static int GRID      = 1;
+    public static int BRUTE     = 2;
+    public static int SEGMENT   = 3; // distance towards the closest link (segment) of the other list instead of its closest node
+    public static int QUANT     = 4; // integer kernel over coordinates quantised to a 1/scale grid (QuantTable)
+    public static String[] SEARCH = new String[]{"KDTREE", "GRID", "BRUTE", "SEGMENT", "QUANT"};
 
-    public NdistCalculator (int a0, int a1, int b0, int b1) {
-        this.begA = a0;
-        this.endA = a1;
-        this.begB = b0;
-        this.endB = b1;
-    }
+    /*
+     * QUANT: coordinates are stored as 16-bit (32-bit if the extent needs it) grid steps, the nearest neighbours are found
+     * with exact integer squared distances (QuantKdTree), converted to float squared distances once (dAB, dBA),
+     * the threshold sweep is the one of the float searches (DistanceSweep, the float distance is monotone in the
+     * integer one, so comparing the thresholds in the integer domain would give the same counts)
+     * memory per node of the calculator: QuantTable 6 bytes (char storage, 12 with int), tree axis 1 byte, plus the
+     * float distance (4) every mode keeps, a KdTree instead copies the coordinates as floats (12 bytes) plus its axis,
+     * the float NodeTable of the reconstruction is shared and kept as in every mode
+     * the measures are bit-identical to the float searches if
+     *  - scale is a power of two (the detected scale always is: detectScale() only finds dyadic grids, coordinates on
+     *    a 0.1 or 0.3 grid need the scale given, as the scale option of SpatDist and BatchDist),
+     *  - every coordinate is a multiple of 1/scale (QuantTable.exact, lossless quantisation), and
+     *  - the bounding box diagonal of both lists together is below 2^12 grid steps
+     *    (every squared distance is then below 2^24 steps^2 and the float arithmetic is exact as well)
+     * otherwise the integer distances are the exact distances between the quantised nodes, they can differ from the
+     * float ones by the quantisation (coordinates off the grid) or by the float rounding (long distances)
+     */
+
+    public static long BRUTE_MAX_PAIRS = 1L<<20; // smaller comparisons skip the index and scan (MinDistKernel)
+
+    public int search = KDTREE;
+
+    public float eps = 0; // KDTREE distances are at most (1+eps) times the exact ones (approximate search if eps>0), see ReadSWC.spatdist1() for the measures
+
+    public double scale = 0; // QUANT grid steps per coordinate unit, 0: smallest power of two that keeps the coordinates exact (set before index())
+
+    public static int MIN_CHUNK = 256;  // fork/join tasks stop splitting below this many nodes
+
+    private static ForkJoinPool pool;   // shared by all the comparisons
+
+    private KdTree treeA; // spatial index over nlistA, queried by the nodes of nlistB
+    private KdTree treeB; // spatial index over nlistB, queried by the nodes of nlistA
+
+    private VoxelGrid gridA; // used instead of the trees if search==GRID
+    private VoxelGrid gridB;
+
+    private SegmentBvh segA; // used if search==SEGMENT
+    private SegmentBvh segB;
+
+    private QuantKdTree qtreeA, qtreeB; // used if search==QUANT, each one owns its QuantTable
 
     // loader using the exclusion mask (soma nodes are usually masked out)
-    public static void load(ArrayList<Node> nlist1, ArrayList<Node> nlist2, ImagePlus mask) {
+    public NdistCalculator(NodeTable nlist1, NodeTable nlist2, ImagePlus mask) {
         // add those nodes where byte8 mask was zero
         byte[][] stackarr = new byte[mask.getStackSize()][];
         for (int z = 0; z < mask.getStackSize(); z++)
             stackarr[z] = (byte[])mask.getStack().getProcessor(z+1).getPixels();
 
-        nlistA.clear();
-        for (int i = 0; i <nlist1.size(); i++) { // check node coordinates, add if it is within the image boundaries and soma mask==0
-            if (nlist1.get(i)!=null) {
-                int x = Math.round(nlist1.get(i).x);
-                int y = Math.round(nlist1.get(i).y);
-                int z = Math.round(nlist1.get(i).z);
-                if (x>=0 && x<mask.getWidth() && y>=0 && y<mask.getHeight() && z>=0 && z<mask.getStackSize() && stackarr[z][y*mask.getWidth()+x]==(byte)0) {
-                    nlistA.add(nlist1.get(i));
-                }
-            }
-        }
+        load(nlist1.subset(inmask(nlist1, mask, stackarr)), nlist2.subset(inmask(nlist2, mask, stackarr)));
 
-        nlistB.clear();
-        for (int i = 0; i < nlist2.size(); i++) { // check node coordinates, add if it is within the image boundaries and soma mask==0
-            if (nlist2.get(i)!=null) {
-                int x = Math.round(nlist2.get(i).x);
-                int y = Math.round(nlist2.get(i).y);
-                int z = Math.round(nlist2.get(i).z);
-                if (x>=0 && x<mask.getWidth() && y>=0 && y<mask.getHeight() && z>=0 && z< mask.getStackSize() && stackarr[z][y*mask.getWidth()+x]==(byte)0) {
-                    nlistB.add(nlist2.get(i));
-                }
-            }
-        }
+    }
+
+    public NdistCalculator(NodeTable nlist1, NodeTable nlist2) {
+        load(nlist1, nlist2);
+    }
 
-        if (nlistA.size()==0 || nlistB.size()==0) {
+    private void load(NodeTable nlist1, NodeTable nlist2) {
+
+        nlistA = nlist1;
+        nlistB = nlist2;
+
+        if (nlistA.n==0 || nlistB.n==0) {
             IJ.log("error: empty swc file!");
-            return;
         }
 
         // initialize the matrix with distances and outputs
-        dAB = new float[nlistA.size()];
+        dAB = new float[nlistA.n];
         Arrays.fill(dAB, Float.POSITIVE_INFINITY);
-        dBA = new float[nlistB.size()];
+        dBA = new float[nlistB.n]; // will be calculated in a separate method
         Arrays.fill(dBA, Float.POSITIVE_INFINITY);
 
     }
 
-    public static void load(ArrayList<Node> nlist1, ArrayList<Node> nlist2) {
-
-        nlistA.clear();
-
-        for (int i = 0; i <nlist1.size(); i++) {
-            if (nlist1.get(i)!=null) {
-                nlistA.add(nlist1.get(i));
+    // indexes of the table nodes that fall inside the image and outside the mask
+    static int[] inmask(NodeTable t, ImagePlus mask, byte[][] stackarr) {
+        int[] idx = new int[t.n];
+        int count = 0;
+        for (int i = 0; i < t.n; i++) { // check node coordinates, add if it is within the image boundaries and soma mask==0
+            int x = Math.round(t.x[i]);
+            int y = Math.round(t.y[i]);
+            int z = Math.round(t.z[i]);
+            if (x>=0 && x<mask.getWidth() && y>=0 && y<mask.getHeight() && z>=0 && z<mask.getStackSize() && stackarr[z][y*mask.getWidth()+x]==(byte)0) {
+                idx[count++] = i;
             }
         }
+        return Arrays.copyOf(idx, count);
+    }
+
+    /**
+     * build the search structures over the loaded lists, small lists are scanned without index
+     * @param mode KDTREE, GRID, BRUTE, SEGMENT or QUANT (SEGMENT and QUANT always build their index, they have their own kernels)
+     * @param swc1 reconstruction nlistA was loaded from (bounding box used to size the grid)
+     * @param swc2 reconstruction nlistB was loaded from
+     */
+    public void index(int mode, ReadSWC swc1, ReadSWC swc2) {
+
+        search = (mode!=SEGMENT && mode!=QUANT && (long)nlistA.n*nlistB.n<=BRUTE_MAX_PAIRS)? BRUTE : mode;
+
+        treeA = null; treeB = null;
+        gridA = null; gridB = null;
+        segA = null; segB = null;
+        qtreeA = null; qtreeB = null;
 
-        nlistB.clear();
+        if (search==BRUTE) return;
 
-        for (int i = 0; i < nlist2.size(); i++) {
-            if (nlist2.get(i)!=null) {
-                nlistB.add(nlist2.get(i));
+        if (search==QUANT) {
+
+            double sc = (scale>0)? scale : QuantTable.detectScale(nlistA, nlistB);
+            QuantTable[] q = (sc>0)? QuantTable.quantise(nlistA, nlistB, sc) : null;
+
+            if (q!=null) {
+                if (!q[0].exact || !q[1].exact) IJ.log("warning: coordinates are not on the 1/" + sc + " grid, QUANT distances are approximate");
+                qtreeA = new QuantKdTree(q[0]);
+                qtreeB = new QuantKdTree(q[1]);
+                return;
             }
+
+            IJ.log("warning: coordinates can not be quantised" + ((sc>0)? " (extent too large)" : " (no exact grid)") + ", using KDTREE");
+            search = KDTREE;
+
         }
 
-        if (nlistA.size()==0 || nlistB.size()==0) {
-            IJ.log("error: empty swc file!");
+        if (search==SEGMENT) {
+            segA = (nlistA==swc1.ntable)? swc1.segments() : new SegmentBvh(nlistA);
+            segB = (nlistB==swc2.ntable)? swc2.segments() : new SegmentBvh(nlistB);
             return;
         }
 
-        // initialize the matrix with distances and outputs
-        dAB = new float[nlistA.size()];
-        Arrays.fill(dAB, Float.POSITIVE_INFINITY);
-        dBA = new float[nlistB.size()]; // will be calculated in a separate method
-        Arrays.fill(dBA, Float.POSITIVE_INFINITY);
+        // unmasked lists are the reconstruction tables, their structures are built once and reused
+        if (search==GRID) {
+            gridA = (nlistA==swc1.ntable)? swc1.grid() : new VoxelGrid(nlistA, swc1.minX, swc1.maxX, swc1.minY, swc1.maxY, swc1.minZ, swc1.maxZ);
+            gridB = (nlistB==swc2.ntable)? swc2.grid() : new VoxelGrid(nlistB, swc2.minX, swc2.maxX, swc2.minY, swc2.maxY, swc2.minZ, swc2.maxZ);
+        }
+        else {
+            treeA = (nlistA==swc1.ntable)? swc1.kdtree() : new KdTree(nlistA);
+            treeB = (nlistB==swc2.ntable)? swc2.kdtree() : new KdTree(nlistB);
+        }
 
     }
 
+    public static synchronized ForkJoinPool getPool() {
+        if (pool==null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return pool;
+    }
+
+    /**
+     * set the pool used for the distance calculation (e.g. to limit the number of threads used by the batch runs)
+     */
+    public static synchronized void setPool(ForkJoinPool p) {
+        pool = p;
+    }
+
+    /**
+     * closest node distances for all the nodes of both lists, the work is split recursively
+     * (nlistA and nlistB taken as one index range) and balanced by work-stealing
+     */
     public void run() {
+        int total = nlistA.n + nlistB.n;
+        int chunk = Math.max(MIN_CHUNK, total / (8*getPool().getParallelism()));
+        getPool().invoke(new NdistTask(this, 0, total, chunk));
+    }
 
-        float dx, dy, dz, d2, curr_min;
+    /**
+     * closest node distances for nlistA[begA..endA) and nlistB[begB..endB)
+     */
+    public void run(int begA, int endA, int begB, int endB) {
 
+        // closest node distance queried from the search structure of the other list
+        float[] x = nlistA.x, y = nlistA.y, z = nlistA.z;
         for (int locA=begA; locA < endA; locA++) {
-            curr_min = Float.POSITIVE_INFINITY;
-            for (int locB = 0; locB < nlistB.size(); locB++) {
-                dx = nlistA.get(locA).x - nlistB.get(locB).x;
-                dy = nlistA.get(locA).y - nlistB.get(locB).y;
-                dz = nlistA.get(locA).z - nlistB.get(locB).z;
-                d2 = dx*dx + dy*dy + dz*dz;
-                if (d2<curr_min) curr_min = d2;
-            }
-            dAB[locA] = curr_min;
+            if (search==BRUTE)      dAB[locA] = MinDistKernel.min2(x[locA], y[locA], z[locA], nlistB.x, nlistB.y, nlistB.z, 0, nlistB.n);
+            else if (search==GRID)  dAB[locA] = gridB.nearest2(x[locA], y[locA], z[locA]);
+            else if (search==SEGMENT) dAB[locA] = segB.nearest2(x[locA], y[locA], z[locA]);
+            else if (search==QUANT) dAB[locA] = qtreeB.float2(qtreeB.nearest2(x[locA], y[locA], z[locA]));
+            else if (eps>0)         dAB[locA] = treeB.nearest2(x[locA], y[locA], z[locA], eps);
+            else                    dAB[locA] = treeB.nearest2(x[locA], y[locA], z[locA]);
         }
 
+        x = nlistB.x; y = nlistB.y; z = nlistB.z;
         for (int locB = begB; locB < endB; locB++) {
-            curr_min = Float.POSITIVE_INFINITY;
-            for (int locA = 0; locA < nlistA.size(); locA++) {
-                dx = nlistB.get(locB).x - nlistA.get(locA).x;
-                dy = nlistB.get(locB).y - nlistA.get(locA).y;
-                dz = nlistB.get(locB).z - nlistA.get(locA).z;
-                d2 = dx*dx + dy*dy + dz*dz;
-                if (d2<curr_min) curr_min = d2;
-            }
-            dBA[locB] = curr_min;
+            if (search==BRUTE)      dBA[locB] = MinDistKernel.min2(x[locB], y[locB], z[locB], nlistA.x, nlistA.y, nlistA.z, 0, nlistA.n);
+            else if (search==GRID)  dBA[locB] = gridA.nearest2(x[locB], y[locB], z[locB]);
+            else if (search==SEGMENT) dBA[locB] = segA.nearest2(x[locB], y[locB], z[locB]);
+            else if (search==QUANT) dBA[locB] = qtreeA.float2(qtreeA.nearest2(x[locB], y[locB], z[locB]));
+            else if (eps>0)         dBA[locB] = treeA.nearest2(x[locB], y[locB], z[locB], eps);
+            else                    dBA[locB] = treeA.nearest2(x[locB], y[locB], z[locB]);
         }
-    }
-
-    public static float[][] compute(float s) {
 
-        ArrayList<Float> sval = new ArrayList<Float>();
-        for (float i = 0.5f; i <= s+Float.MIN_VALUE; i+=0.5f) {
-            sval.add(i);}
-
-        float[][] out = new float[sval.size()][10];
+    }
 
-        for (int si = 0; si < sval.size(); si++) {
+    /**
+     * measures for the thresholds S = 0.5, 1.0, ... s
+     */
+    public float[][] compute(float s) {
+        return compute(sweep(0.5f, 0.5f, s));
+    }
 
-            float   d;
-            float   sdA = 0, ssdA = 0, sdB = 0, ssdB = 0;
-            int     cntA = 0, cntB = 0, tp_rec = 0, tp_gs = 0;
+    /**
+     * thresholds start, start+step, ... up to end, each one taken as start+k*step (no accumulated rounding,
+     * end is kept when it is within 1e-4 steps of the grid), empty unless start and step are positive
+     */
+    public static float[] sweep(float start, float step, float end) {
 
-            for (int i = 0; i < dAB.length; i++) {
+        if (!(start>0) || !(step>0) || !(end>=start)) return new float[0];
 
-                d = (float) Math.sqrt(dAB[i]);
+        int n = (int) Math.floor((end-(double)start)/step + 1e-4) + 1;
 
-                sdA += d;
+        float[] out = new float[n];
+        for (int k = 0; k < n; k++) out[k] = (float) (start + (double)k*step);
+        return out;
 
-                if (d>=sval.get(si)) {
-                    ssdA += d;
-                    cntA++;
-                }
-                else {
-                    tp_rec++;
-                }
+    }
 
-            }
+    /**
+     * measures for the given (ascending, positive) thresholds, all of them evaluated from the same distances
+     * distances are sorted once (DistanceSweep), each threshold costs a binary search and the
+     * cumulative (PC, RC, FC) integrals are accumulated along the sweep
+     */
+    public float[][] compute(float[] sval) {
+        return compute(sval, new DistanceSweep(dAB), new DistanceSweep(dBA));
+    }
 
-            for (int i = 0; i < dBA.length; i++) {
+    /**
+     * measures from the prepared A->B (swA) and B->A (swB) distances
+     */
+    static float[][] compute(float[] sval, DistanceSweep swA, DistanceSweep swB) {
 
-                d = (float) Math.sqrt(dBA[i]);
+        float[][] out = new float[sval.length][10];
 
-                sdB += d;
+        float precision_cumm = 0;
+        float recall_cumm    = 0;
+        float fscore_cumm    = 0;
 
-                if (d>=sval.get(si)) {
-                    ssdB += d;
-                    cntB++;
-                }
-                else {
-                    tp_gs++;
-                }
+        for (int si = 0; si < sval.length; si++) {
 
-            }
+            int     cntA = swA.countAbove(sval[si]);
+            int     cntB = swB.countAbove(sval[si]);
+            float   ssdA = (float) swA.sumAbove(sval[si]);
+            float   ssdB = (float) swB.sumAbove(sval[si]);
+            int     tp_rec = swA.n - cntA;
+            int     tp_gs  = swB.n - cntB;
 
-            float sd        = .5f*(sdA/dAB.length)+.5f*(sdB/dBA.length);
+            float sd        = .5f*(swA.sum/swA.n)+.5f*(swB.sum/swB.n);
             float ssd       = ((cntA>0)? (.5f*(ssdA/cntA)) : 0) + ((cntB>0)? (.5f*(ssdB/cntB)) : 0);
-            float percssd   = .5f*((float)cntA/dAB.length)+.5f*((float)cntB/dBA.length);
-            float precision = (float)tp_rec/dAB.length;//((swtch)?dBA.length:dAB.length);
-            float recall    = (float)tp_gs/dBA.length;//((swtch)?dAB.length:dBA.length);
+            float percssd   = .5f*((float)cntA/swA.n)+.5f*((float)cntB/swB.n);
+            float precision = (float)tp_rec/swA.n;//((swtch)?dBA.length:dAB.length);
+            float recall    = (float)tp_gs/swB.n;//((swtch)?dAB.length:dBA.length);
             float fscore    = (precision+recall>Float.MIN_VALUE)? ((2*precision*recall)/(precision+recall)) : 0f;
 
             out[si][0] = sd;
-            out[si][1] = sval.get(si);
+            out[si][1] = sval[si];
             out[si][2] = ssd;
             out[si][3] = percssd;
             out[si][4] = precision;
             out[si][5] = recall;
             out[si][6] = fscore;
 
-            float precision_cumm = 0;
-            float recall_cumm    = 0;
-            float fscore_cumm    = 0;
-            for (int k = si; k >= 0; k--) {
-                float delta_s = (k>0)?(sval.get(k)-sval.get(k-1)) : sval.get(k);
-                precision_cumm += delta_s * out[k][4];
-                recall_cumm    += delta_s * out[k][5];
-                fscore_cumm    += delta_s * out[k][6];
-            }
-            precision_cumm /= sval.get(si); // normalize
-            recall_cumm /= sval.get(si);
-            fscore_cumm /= sval.get(si);
+            // running integrals of P, R, F over S
+            float delta_s = (si>0)?(sval[si]-sval[si-1]) : sval[si];
+            precision_cumm += delta_s * precision;
+            recall_cumm    += delta_s * recall;
+            fscore_cumm    += delta_s * fscore;
 
-            out[si][7] = precision_cumm;
-            out[si][8] = recall_cumm;
-            out[si][9] = fscore_cumm;
+            out[si][7] = precision_cumm / sval[si]; // normalize
+            out[si][8] = recall_cumm / sval[si];
+            out[si][9] = fscore_cumm / sval[si];
 
         }
 
@@ -212,3 +303,32 @@ public class NdistCalculator extends Thread {
     }
 
 }
+
+class NdistTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private NdistCalculator calc;
+    private int beg, end, chunk; // range over A nodes followed by B nodes
+
+    public NdistTask(NdistCalculator calc, int beg, int end, int chunk) {
+        this.calc = calc;
+        this.beg = beg;
+        this.end = end;
+        this.chunk = chunk;
+    }
+
+    protected void compute() {
+
+        if (end-beg<=chunk) {
+            int nA = calc.nlistA.n;
+            calc.run(Math.min(beg, nA), Math.min(end, nA), Math.max(beg-nA, 0), Math.max(end-nA, 0));
+            return;
+        }
+
+        int mid = (beg+end)>>>1;
+        invokeAll(new NdistTask(calc, beg, mid, chunk), new NdistTask(calc, mid, end, chunk));
+
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.braincadet.ndist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * compact (struct of arrays) storage of the reconstruction nodes, used by the distance kernels
+ * node i is the sphere (x[i],y[i],z[i],r[i]) of type[i],
+ * its neighbours (indexes in the table) are nbr[nbr0[i]] .. nbr[nbr0[i+1]-1] (compressed sparse rows)
+ */
+public class NodeTable {
+
+    public int      n;          // number of nodes
+    public float[]  x, y, z, r;
+    public byte[]   type;
+    public int[]    id;         // index of the node in ReadSWC.nnodes (ReadSWC.ids[] gives the swc id)
+    public int[]    link;       // resampled tables (Resampler): link slot (nbr index) of the source table the node lies on, -1 for kept nodes, null otherwise
+    public int[]    nbr0;       // n+1 row offsets
+    public int[]    nbr;        // neighbour indexes
+
+    public NodeTable(int n, int nedges) {
+        this.n  = n;
+        x       = new float[n];
+        y       = new float[n];
+        z       = new float[n];
+        r       = new float[n];
+        type    = new byte[n];
+        id      = new int[n];
+        nbr0    = new int[n+1];
+        nbr     = new int[nedges];
+    }
+
+    /**
+     * table from the linked node list, null elements are skipped and the neighbour indexes are remapped
+     */
+    public static NodeTable fromNodes(ArrayList<Node> nlist) {
+
+        int[] map = new int[nlist.size()]; // list index -> table index
+        int cnt = 0, nedges = 0;
+
+        for (int i = 0; i < nlist.size(); i++) {
+            if (nlist.get(i)!=null) {
+                map[i] = cnt++;
+                nedges += nlist.get(i).nbr.size();
+            }
+            else map[i] = -1;
+        }
+
+        NodeTable t = new NodeTable(cnt, nedges);
+
+        int k = 0, e = 0;
+        for (int i = 0; i < nlist.size(); i++) {
+            Node nd = nlist.get(i);
+            if (nd==null) continue;
+            t.x[k]      = nd.x;
+            t.y[k]      = nd.y;
+            t.z[k]      = nd.z;
+            t.r[k]      = nd.r;
+            t.type[k]   = (byte) nd.type;
+            t.id[k]     = i;
+            for (int j = 0; j < nd.nbr.size(); j++) {
+                int m = map[nd.nbr.get(j)];
+                if (m>=0) t.nbr[e++] = m;
+            }
+            t.nbr0[++k] = e;
+        }
+
+        return t;
+
+    }
+
+    /**
+     * table of n nodes with the links a[k]--b[k] (k < nlinks) in both directions, repeated links are kept once,
+     * rows come out sorted: two stable counting sorts of the directed links (by target, then by source)
+     * followed by one unique pass, linear in n + nlinks, node attributes are left for the caller
+     */
+    public static NodeTable fromLinks(int n, int[] a, int[] b, int nlinks) {
+
+        int m = 2*nlinks;
+
+        // by target
+        int[] cnt = new int[n+1];
+        for (int k = 0; k < nlinks; k++) {
+            cnt[b[k]+1]++;
+            cnt[a[k]+1]++;
+        }
+        for (int i = 0; i < n; i++) cnt[i+1] += cnt[i];
+
+        int[] src = new int[m], dst = new int[m];
+        for (int k = 0; k < nlinks; k++) {
+            int p = cnt[b[k]]++;
+            src[p] = a[k];
+            dst[p] = b[k];
+            p = cnt[a[k]]++;
+            src[p] = b[k];
+            dst[p] = a[k];
+        }
+
+        // by source, stable, so every row is in ascending target order
+        int[] row = new int[n+1];
+        for (int k = 0; k < m; k++) row[src[k]+1]++;
+        for (int i = 0; i < n; i++) row[i+1] += row[i];
+
+        int[] sorted = new int[m];
+        int[] fill = Arrays.copyOf(row, n);
+        for (int k = 0; k < m; k++) sorted[fill[src[k]]++] = dst[k];
+
+        // unique, compacted in place
+        int e = 0;
+        for (int i = 0; i < n; i++) {
+            int beg = e;
+            for (int j = row[i]; j < row[i+1]; j++)
+                if (e==beg || sorted[e-1]!=sorted[j]) sorted[e++] = sorted[j];
+            row[i] = beg;
+        }
+        row[n] = e;
+
+        NodeTable t = new NodeTable(n, 0);
+        t.nbr0 = row;
+        t.nbr = (e==m)? sorted : Arrays.copyOf(sorted, e);
+
+        return t;
+
+    }
+
+    /**
+     * nodes at the given table indexes (used as the point sets of the distance calculation),
+     * links are kept between the selected nodes
+     */
+    public NodeTable subset(int[] idx) {
+
+        int[] map = new int[n]; // table index -> subset index
+        Arrays.fill(map, -1);
+        for (int i = 0; i < idx.length; i++) map[idx[i]] = i;
+
+        int nedges = 0;
+        for (int i = 0; i < idx.length; i++)
+            for (int j = nbr0[idx[i]]; j < nbr0[idx[i]+1]; j++) if (map[nbr[j]]>=0) nedges++;
+
+        NodeTable t = new NodeTable(idx.length, nedges);
+        if (link!=null) t.link = new int[idx.length];
+
+        int e = 0;
+        for (int i = 0; i < idx.length; i++) {
+            t.x[i]      = x[idx[i]];
+            t.y[i]      = y[idx[i]];
+            t.z[i]      = z[idx[i]];
+            t.r[i]      = r[idx[i]];
+            t.type[i]   = type[idx[i]];
+            t.id[i]     = id[idx[i]];
+            if (link!=null) t.link[i] = link[idx[i]];
+            for (int j = nbr0[idx[i]]; j < nbr0[idx[i]+1]; j++) if (map[nbr[j]]>=0) t.nbr[e++] = map[nbr[j]];
+            t.nbr0[i+1] = e;
+        }
+
+        return t;
+
+    }
+
+    /**
+     * slot of the opposite direction of every link: nbr[rev[j]] is the node that owns the slot j,
+     * -1 where the link is one-directional, computed in linear time through the transposed rows
+     * (fromLinks() tables are symmetric and have no -1, callers still guard it for tables from other sources:
+     * fromNodes() and binary caches, where the target row of a -1 slot has no slot back towards its owner)
+     */
+    public int[] reverse() {
+
+        int nnz = nbr0[n];
+
+        // transposed rows: slots j (i->k) grouped by k, in ascending i
+        // (own offsets, the in-degree of k differs from its row length when the links are not symmetric)
+        int[] tr0 = new int[n+1];
+        for (int j = 0; j < nnz; j++) tr0[nbr[j]+1]++;
+        for (int k = 0; k < n; k++) tr0[k+1] += tr0[k];
+
+        int[] tslot = new int[nnz], tsrc = new int[nnz];
+        int[] fill = Arrays.copyOf(tr0, n);
+        for (int i = 0; i < n; i++) {
+            for (int j = nbr0[i]; j < nbr0[i+1]; j++) {
+                int k = nbr[j];
+                tslot[fill[k]] = j;
+                tsrc[fill[k]++] = i;
+            }
+        }
+
+        int[] rev = new int[nnz];
+        int[] where = new int[n]; // i -> slot i->k of the row k being matched
+        Arrays.fill(where, -1);
+
+        for (int k = 0; k < n; k++) {
+            for (int s = tr0[k+1]-1; s >= tr0[k]; s--) where[tsrc[s]] = tslot[s]; // first one wins for repeated links
+            for (int s = nbr0[k]; s < nbr0[k+1]; s++) rev[s] = where[nbr[s]];
+            for (int s = tr0[k]; s < tr0[k+1]; s++) where[tsrc[s]] = -1;
+        }
+
+        return rev;
+
+    }
+
+    public int degree(int i) {
+        return nbr0[i+1] - nbr0[i];
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.braincadet.ndist;
+
+/**
+ * k-d tree over quantised coordinates (QuantTable), same implicit layout as KdTree,
+ * distances are exact integer squared distances in grid steps (long), pruning compares them exactly
+ * the points are the arrays of the table, reordered in place (no copy), the tree adds one byte per node (axis)
+ * built once, read-only afterwards (can be queried from several threads)
+ */
+public class QuantKdTree {
+
+    private static int LEAF_SIZE = 8;   // ranges with this many points or less are scanned
+
+    private QuantTable t;               // grid of the queries
+    private boolean wide;
+    private char[]  x16, y16, z16;      // table arrays, reordered, one of the two storages is used
+    private int[]   x32, y32, z32;
+    private byte[]  axis;
+    private int     n;
+    private double  inv2;               // 1/scale^2
+
+    /**
+     * tree over the points of t, t is reordered (its index no longer follows the node table)
+     */
+    public QuantKdTree(QuantTable t) {
+
+        this.t = t;
+        n = t.n;
+        wide = t.wide;
+        inv2 = 1 / (t.scale*t.scale);
+
+        x32 = t.x32; y32 = t.y32; z32 = t.z32;
+        x16 = t.x16; y16 = t.y16; z16 = t.z16;
+
+        axis = new byte[n];
+
+        build(0, n);
+
+    }
+
+    public int size() {
+        return n;
+    }
+
+    private int c(int ax, int i) {
+        if (wide)   return (ax==0)? x32[i] : ((ax==1)? y32[i] : z32[i]);
+        else        return (ax==0)? x16[i] : ((ax==1)? y16[i] : z16[i]);
+    }
+
+    private void build(int lo, int hi) {
+
+        if (hi-lo<=LEAF_SIZE) return;
+
+        int x0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE;
+        int y0 = Integer.MAX_VALUE, y1 = Integer.MIN_VALUE;
+        int z0 = Integer.MAX_VALUE, z1 = Integer.MIN_VALUE;
+
+        for (int i = lo; i < hi; i++) {
+            x0 = Math.min(x0, c(0, i)); x1 = Math.max(x1, c(0, i));
+            y0 = Math.min(y0, c(1, i)); y1 = Math.max(y1, c(1, i));
+            z0 = Math.min(z0, c(2, i)); z1 = Math.max(z1, c(2, i));
+        }
+
+        byte ax = 0;
+        if (y1-y0>x1-x0) ax = 1;
+        if (z1-z0>((ax==0)?(x1-x0):(y1-y0))) ax = 2;
+
+        int mid = (lo+hi)>>>1;
+        select(lo, hi-1, mid, ax);
+        axis[mid] = ax;
+
+        build(lo, mid);
+        build(mid+1, hi);
+
+    }
+
+    // quickselect, same scheme as KdTree.select()
+    private void select(int lo, int hi, int k, int ax) {
+
+        while (hi>lo) {
+
+            int m = (lo+hi)>>>1;
+            if (c(ax, m)<c(ax, lo)) swap(m, lo);
+            if (c(ax, hi)<c(ax, lo)) swap(hi, lo);
+            if (c(ax, hi)<c(ax, m)) swap(hi, m);
+            int pivot = c(ax, m);
+
+            int i = lo, j = hi;
+            while (i<=j) {
+                while (c(ax, i)<pivot) i++;
+                while (c(ax, j)>pivot) j--;
+                if (i<=j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            if (k<=j)       hi = j;
+            else if (k>=i)  lo = i;
+            else            return;
+
+        }
+
+    }
+
+    private void swap(int i, int j) {
+        if (wide) {
+            int t;
+            t = x32[i]; x32[i] = x32[j]; x32[j] = t;
+            t = y32[i]; y32[i] = y32[j]; y32[j] = t;
+            t = z32[i]; z32[i] = z32[j]; z32[j] = t;
+        }
+        else {
+            char t;
+            t = x16[i]; x16[i] = x16[j]; x16[j] = t;
+            t = y16[i]; y16[i] = y16[j]; y16[j] = t;
+            t = z16[i]; z16[i] = z16[j]; z16[j] = t;
+        }
+    }
+
+    /**
+     * exact squared distance (grid steps) from the point (quantised to the grid of the tree) towards the closest point of the tree
+     */
+    public long nearest2(float x, float y, float z) {
+        if (n==0) return Long.MAX_VALUE;
+        return search(0, n, t.qx(x), t.qy(y), t.qz(z), Long.MAX_VALUE);
+    }
+
+    /**
+     * float squared distance (coordinate units) of the squared distance d2 in grid steps,
+     * stored as the other searches store theirs, DistanceSweep takes the square root in float
+     */
+    public float float2(long d2) {
+        return (float) (d2*inv2);
+    }
+
+    private long search(int lo, int hi, int qx, int qy, int qz, long best) {
+
+        if (hi-lo<=LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                long dx = qx - c(0, i);
+                long dy = qy - c(1, i);
+                long dz = qz - c(2, i);
+                long d2 = dx*dx + dy*dy + dz*dz;
+                if (d2<best) best = d2;
+            }
+            return best;
+        }
+
+        int mid = (lo+hi)>>>1;
+
+        long dx = qx - c(0, mid);
+        long dy = qy - c(1, mid);
+        long dz = qz - c(2, mid);
+        long d2 = dx*dx + dy*dy + dz*dz;
+        if (d2<best) best = d2;
+
+        long diff = (axis[mid]==0)? dx : ((axis[mid]==1)? dy : dz);
+
+        if (diff<0) {
+            best = search(lo, mid, qx, qy, qz, best);
+            if (diff*diff<best) best = search(mid+1, hi, qx, qy, qz, best);
+        }
+        else {
+            best = search(mid+1, hi, qx, qy, qz, best);
+            if (diff*diff<best) best = search(lo, mid, qx, qy, qz, best);
+        }
+
+        return best;
+
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.braincadet.ndist;
+
+/**
+ * node coordinates quantised to a fixed-point grid: v = round(x*scale) - origin, for the integer distance kernel
+ * 16-bit storage (char, unsigned) is used when the grid extent of the compared tables fits into 65536 steps,
+ * 32-bit (int) otherwise, coordinates further than 2^29 steps apart are not supported (squared sums would overflow)
+ * quantisation is lossless (exact) when every coordinate is a multiple of 1/scale, detectScale() finds the smallest
+ * power of two scale for which that holds (dyadic grids only, a decimal grid such as 0.1 is never detected and needs the
+ * scale given, NdistCalculator.scale)
+ * the table is the point storage of its QuantKdTree (reordered by it in place), 6 bytes per node with char storage
+ * (12 with int) instead of the 12 bytes of the float coordinates a KdTree copies, queries are quantised on the fly (qx(), qy(), qz())
+ */
+public class QuantTable {
+
+    public static int MAX_EXTENT = 1<<29;   // grid steps, keeps dx*dx+dy*dy+dz*dz below 2^62
+    public static int MAX_SCALE_BITS = 16;  // detectScale() tries the scales 1, 2, 4 ... 2^MAX_SCALE_BITS
+
+    public int      n;
+    public double   scale;      // grid steps per coordinate unit
+    public boolean  wide;       // int storage (x32..), char storage (x16..) otherwise
+    public boolean  exact;      // every coordinate was on the grid
+    public long     ox, oy, oz; // grid coordinates of the origin
+
+    char[]  x16, y16, z16;
+    int[]   x32, y32, z32;
+
+    /**
+     * quantise t with the given scale and origin (grid coordinates of the common minimum corner)
+     * @param wide int storage, needed when the extent is 65536 steps or more
+     */
+    public QuantTable(NodeTable t, double scale, long ox, long oy, long oz, boolean wide) {
+
+        n = t.n;
+        this.scale = scale;
+        this.wide = wide;
+        this.ox = ox;
+        this.oy = oy;
+        this.oz = oz;
+        exact = true;
+
+        if (wide) {
+            x32 = new int[n];
+            y32 = new int[n];
+            z32 = new int[n];
+        }
+        else {
+            x16 = new char[n];
+            y16 = new char[n];
+            z16 = new char[n];
+        }
+
+        for (int i = 0; i < n; i++) {
+
+            long vx = Math.round(t.x[i]*scale), vy = Math.round(t.y[i]*scale), vz = Math.round(t.z[i]*scale);
+
+            exact &= (float)(vx/scale)==t.x[i] && (float)(vy/scale)==t.y[i] && (float)(vz/scale)==t.z[i];
+
+            if (wide) {
+                x32[i] = (int) (vx-ox);
+                y32[i] = (int) (vy-oy);
+                z32[i] = (int) (vz-oz);
+            }
+            else {
+                x16[i] = (char) (vx-ox);
+                y16[i] = (char) (vy-oy);
+                z16[i] = (char) (vz-oz);
+            }
+
+        }
+
+    }
+
+    /**
+     * quantise both tables to the same grid, null if a coordinate is not finite or the extent is too large
+     */
+    public static QuantTable[] quantise(NodeTable a, NodeTable b, double scale) {
+
+        long[] min = new long[]{Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] max = new long[]{Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+
+        for (NodeTable t : new NodeTable[]{a, b}) {
+            for (float[] c : new float[][]{t.x, t.y, t.z}) {
+                int d = (c==t.x)? 0 : ((c==t.y)? 1 : 2);
+                for (int i = 0; i < t.n; i++) {
+                    double v = c[i]*scale;
+                    if (!(Math.abs(v)<=MAX_EXTENT*4.0)) return null; // not finite, or too far from the origin
+                    long q = Math.round(v);
+                    min[d] = Math.min(min[d], q);
+                    max[d] = Math.max(max[d], q);
+                }
+            }
+        }
+
+        long ext = 0;
+        for (int d = 0; d < 3; d++) ext = Math.max(ext, max[d]-min[d]);
+        if (ext>=MAX_EXTENT) return null;
+
+        boolean wide = ext>Character.MAX_VALUE;
+
+        return new QuantTable[]{
+                new QuantTable(a, scale, min[0], min[1], min[2], wide),
+                new QuantTable(b, scale, min[0], min[1], min[2], wide)};
+
+    }
+
+    /**
+     * smallest power of two scale (up to 2^MAX_SCALE_BITS) that puts all the coordinates onto the grid, 0 if there is none
+     */
+    public static double detectScale(NodeTable... tables) {
+
+        int bits = 0;
+
+        for (NodeTable t : tables) {
+            for (int i = 0; i < t.n; i++) {
+                bits = Math.max(bits, fractionBits(t.x[i]));
+                bits = Math.max(bits, fractionBits(t.y[i]));
+                bits = Math.max(bits, fractionBits(t.z[i]));
+                if (bits>MAX_SCALE_BITS) return 0;
+            }
+        }
+
+        return 1 << bits;
+
+    }
+
+    // number of binary digits after the point (MAX_SCALE_BITS+1 if more, or not finite)
+    private static int fractionBits(float v) {
+        if (Float.isNaN(v) || Float.isInfinite(v)) return MAX_SCALE_BITS+1;
+        for (int k = 0; k <= MAX_SCALE_BITS; k++) {
+            double s = v * (double)(1L<<k);
+            if (s==Math.rint(s)) return k;
+        }
+        return MAX_SCALE_BITS+1;
+    }
+
+    // grid coordinates of a point of a table quantised to the same grid (same rounding as the constructor)
+    int qx(float v) {
+        return (int) (Math.round(v*scale) - ox);
+    }
+
+    int qy(float v) {
+        return (int) (Math.round(v*scale) - oy);
+    }
+
+    int qz(float v) {
+        return (int) (Math.round(v*scale) - oz);
+    }
+
+}
@@ -5,6 +5,7 @@ import ij.ImagePlus;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * reader class for swc neuron reconstruction file
@@ -18,10 +19,18 @@ public class ReadSWC {
     // (nevertheless, ids can repeat or be missing)
     // input is read as the list of linked nodes (Node class)
     // Node contains the sphere (x,y,z,r) + the link towards the neighbouring node (index from the node list)
+    // list is dense, nodes are sorted by id, the first row of a repeated id is kept
+    // links are deduplicated with neighbours in ascending order (NodeTable.fromLinks), dropped rows are counted in validation
 
     // new list with nodes
     public ArrayList<Node> nnodes = new ArrayList<Node>();
+    public int[] ids = new int[0];          // nnodes index -> swc id
+    public IdMap idmap = new IdMap(0);      // swc id -> nnodes index
     public ArrayList<ArrayList<Node>> trees = new ArrayList<ArrayList<Node>>(); // extracted from nnodes if doTree=1
+    public SwcValidation validation = new SwcValidation(); // rows and links that were dropped or inconsistent
+
+    // same nodes in compact form (no null elements), consumed by the distance calculators
+    public NodeTable ntable = new NodeTable(0, 0);
 
     public int maxID = Integer.MIN_VALUE;
 
@@ -41,6 +50,18 @@ public class ReadSWC {
 
     public static int SWC_LINE_LENGTH = 7;
 
+    // search structures over ntable, built once (kdtree(), grid()), volatile: indexBytes() reads them without the lock
+    private volatile KdTree      kdtree;
+    private volatile VoxelGrid   grid;
+    private volatile SegmentBvh  segments;
+    private SwcBinary   bin;    // cache the reconstruction was loaded from, its k-d tree is read on demand
+
+    private volatile NodeTable   rtable; // ntable resampled with rstep (resampled())
+    private volatile Components  components;
+    private volatile Branches    branches;
+    private volatile Topology    topology;
+    private float       rstep;
+
     public boolean isNumeric(String s) {
         return s.matches("[-+]?\\d*\\.?\\d+");
     }
@@ -59,134 +80,285 @@ public class ReadSWC {
             return;
         }
 
-        ArrayList<float[]> nodes_load = new ArrayList<float[]>(); // 1x7 rows (swc format)
+        SwcParser nodes_load = new SwcParser(); // rows (swc format)
 
         // read the node list of line elements
         // read it all first to get the full range if node ids
         try { // scan the file
+            nodes_load = SwcParser.parse(swcpath1);
+        }
+        catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+        }
 
-            FileInputStream fstream 	= new FileInputStream(swcpath1);
-            BufferedReader br 			= new BufferedReader(new InputStreamReader(new DataInputStream(fstream)));
-            String read_line;
-
-            while ( (read_line = br.readLine()) != null ) { // it will break on the empty line !!!
+        maxID = nodes_load.maxID;
 
-                if (read_line.isEmpty()) continue; // skip empty lines
+        minR = nodes_load.minR; maxR = nodes_load.maxR;
+        minX = nodes_load.minX; maxX = nodes_load.maxX;
+        minY = nodes_load.minY; maxY = nodes_load.maxY;
+        minZ = nodes_load.minZ; maxZ = nodes_load.maxZ;
 
-                if(!read_line.trim().startsWith("#")) { // # are comments
+        if (nodes_load.n>0) {
 
-                    String[] 	readLn = 	read_line.trim().replaceAll("," , ".").split("\\s+");
-                    
-                    if (readLn.length!=SWC_LINE_LENGTH) continue; // skip the line that did not have enough values
+            validation.rows = nodes_load.n;
 
-                    float[] 	valsLn = 	new float[SWC_LINE_LENGTH]; // x, y, z, mother_index
+            // first row of each id
+            IdMap first = new IdMap(nodes_load.n);
+            int cnt = 0;
+            ids = new int[nodes_load.n];
+            for (int i = 0; i < nodes_load.n; i++) {
+                if (!first.containsKey(nodes_load.id[i])) {
+                    first.put(nodes_load.id[i], i);
+                    ids[cnt++] = nodes_load.id[i];
+                }
+                else {
+                    validation.repeatedIds++;
+                    validation.repeatedIdSamples = SwcValidation.sample(validation.repeatedIdSamples, nodes_load.id[i]);
+                }
+            }
 
-                    if (!isNumeric(readLn[ID].trim()) ||
-                            !isNumeric(readLn[TYPE].trim()) ||
-                            !isNumeric(readLn[XCOORD].trim()) ||
-                            !isNumeric(readLn[YCOORD].trim()) ||
-                            !isNumeric(readLn[ZCOORD].trim()) ||
-                            !isNumeric(readLn[RADIUS].trim()) ||
-                            !isNumeric(readLn[PARENT].trim())
-                            ) continue; // skip adding if one of the node components is not a number (element will stay null)
+            // dense indexes in the id order
+            ids = Arrays.copyOf(ids, cnt);
+            Arrays.sort(ids);
 
-                    valsLn[0] = Integer.valueOf(readLn[ID].trim()).intValue();      // id
-                    valsLn[1] = Integer.valueOf(readLn[TYPE].trim()).intValue();    // type
-                    valsLn[2] = Float.valueOf(readLn[XCOORD].trim()).floatValue();  // x, y, z
-                    valsLn[3] = Float.valueOf(readLn[YCOORD].trim()).floatValue();
-                    valsLn[4] = Float.valueOf(readLn[ZCOORD].trim()).floatValue();
-                    valsLn[5] = Float.valueOf(readLn[RADIUS].trim()).floatValue();  // radius
-                    valsLn[6] = Integer.valueOf(readLn[PARENT].trim()).intValue();  // mother idx
+            idmap = first; // row values are replaced by the nnodes indexes
+            int[] row = new int[cnt];
+            for (int k = 0; k < cnt; k++) {
+                row[k] = first.get(ids[k]);
+                idmap.put(ids[k], k);
+            }
 
-                    // add the line if the id of the node was positive
-                    if (valsLn[0]>=0) nodes_load.add(valsLn);
-                    else IJ.log("warning: node ID was negative -> skipping");
+            // links of the rows (both ends have to exist), one per row at most
+            int[] la = new int[nodes_load.n], lb = new int[nodes_load.n];
+            int nlinks = 0;
+            for (int i = 0; i < nodes_load.n; i++) {
 
-                    maxID = (valsLn[0]>maxID)? (int) valsLn[0] : maxID;
+                int     currId      = nodes_load.id[i];
+                int     prevId      = nodes_load.parent[i];
 
-                    minR = (valsLn[RADIUS]<minR)? valsLn[RADIUS] : minR;
-                    maxR = (valsLn[RADIUS]>maxR)? valsLn[RADIUS] : maxR;
+                if (prevId==-1) continue;
 
-                    minX = (valsLn[XCOORD]<minX)? valsLn[XCOORD] : minX;
-                    maxX = (valsLn[XCOORD]>maxX)? valsLn[XCOORD] : maxX;
+                if (prevId==currId) {
+                    validation.selfLinks++;
+                    continue;
+                }
 
-                    minY = (valsLn[YCOORD]<minY)? valsLn[YCOORD] : minY;
-                    maxY = (valsLn[YCOORD]>maxY)? valsLn[YCOORD] : maxY;
+                int prev = idmap.get(prevId);
+                if (prev<0) {
+                    validation.missingParents++;
+                    validation.missingParentSamples = SwcValidation.sample(validation.missingParentSamples, prevId);
+                    continue;
+                }
 
-                    minZ = (valsLn[ZCOORD]<minZ)? valsLn[ZCOORD] : minZ;
-                    maxZ = (valsLn[ZCOORD]>maxZ)? valsLn[ZCOORD] : maxZ;
+                la[nlinks] = idmap.get(currId);
+                lb[nlinks] = prev;
+                nlinks++;
 
-                }
+            }
 
+            // bi-directional, deduplicated links
+            ntable = NodeTable.fromLinks(cnt, la, lb, nlinks);
+            validation.duplicateLinks = nlinks - ntable.nbr0[cnt]/2;
+
+            nnodes = new ArrayList<Node>(cnt);
+
+            for (int k = 0; k < cnt; k++) {
+                int i = row[k];
+                ntable.x[k]     = nodes_load.x[i];
+                ntable.y[k]     = nodes_load.y[i];
+                ntable.z[k]     = nodes_load.z[i];
+                ntable.r[k]     = nodes_load.r[i];
+                ntable.type[k]  = (byte) nodes_load.type[i];
+                ntable.id[k]    = k;
+                Node nd = new Node(nodes_load.x[i], nodes_load.y[i], nodes_load.z[i], nodes_load.r[i], nodes_load.type[i]);
+                for (int j = ntable.nbr0[k]; j < ntable.nbr0[k+1]; j++) nd.nbr.add(ntable.nbr[j]);
+                nnodes.add(nd);
             }
 
-            br.close();
-            fstream.close();
+            validate(ntable);
 
         }
-        catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
+        else {
+
+            nnodes = new ArrayList<Node>(); // size==0
+            // don't add any nodes
+
         }
 
-        // initialize all with null, ID will correspond to the index in nnodes list
-        if (nodes_load.size()>0) {
-            nnodes = new ArrayList<Node>(maxID + 1);
+        if (doTree && nnodes.size()>0) bfs(ntable, nnodes, trees);
 
-            for (int i = 0; i <= maxID; i++) nnodes.add(i, null);
+    }
 
-            for (int i = 0; i < nodes_load.size(); i++) { // fill the nnodes list elements only
+    /**
+     * reconstruction from the binary cache (SwcBinary), nodes and links are taken from the stored table
+     * (no text parsing, id resolution or link deduplication), the nnodes list is still rebuilt from it,
+     * one Node with its boxed neighbour list per table node
+     */
+    public ReadSWC(SwcBinary bin, boolean doTree) {
 
-                int     currId      = Math.round(nodes_load.get(i)[ID]);
-                int     currType    = Math.round(nodes_load.get(i)[TYPE]);
+        this.bin = bin;
 
-                float   currX       = nodes_load.get(i)[XCOORD];
-                float   currY       = nodes_load.get(i)[YCOORD];
-                float   currZ       = nodes_load.get(i)[ZCOORD];
+        maxID = bin.maxID;
 
-                float   currR       = nodes_load.get(i)[RADIUS];
+        minR = bin.minR; maxR = bin.maxR;
+        minX = bin.minX; maxX = bin.maxX;
+        minY = bin.minY; maxY = bin.maxY;
+        minZ = bin.minZ; maxZ = bin.maxZ;
 
-                int     prevId      = Math.round(nodes_load.get(i)[PARENT]);
+        ntable = bin.table;
+        ids = bin.ids;
 
-                if (nnodes.get(currId)==null) { // add the node
-                    nnodes.set(currId, new Node(currX, currY, currZ, currR, currType));
-                }
+        idmap = new IdMap(ntable.n);
+        nnodes = new ArrayList<Node>(ntable.n);
 
-            }
+        validation.rows = ntable.n; // rows that were dropped are not known here
+
+        for (int i = 0; i < ntable.n; i++) {
+            idmap.put(ids[i], i);
+            Node nd = new Node(ntable.x[i], ntable.y[i], ntable.z[i], ntable.r[i], ntable.type[i]);
+            for (int j = ntable.nbr0[i]; j < ntable.nbr0[i+1]; j++) nd.nbr.add(ntable.nbr[j]);
+            nnodes.add(nd);
+        }
 
-            // once the nodes are added add bi-directional connections
-            for (int i = 0; i < nodes_load.size(); i++) {
+        validate(ntable);
 
-                int     currId      = Math.round(nodes_load.get(i)[ID]);
-                int     prevId      = Math.round(nodes_load.get(i)[PARENT]);
+        if (doTree && nnodes.size()>0) bfs(ntable, nnodes, trees);
 
-                if (prevId!=-1 && prevId!=currId) {
-                    if (currId>=0 && currId<nnodes.size() && prevId>=0 && prevId<nnodes.size()) {
-                        // add the link if both were != null
-                        if (nnodes.get(currId) != null && nnodes.get(prevId) != null) {
-                            nnodes.get(currId).nbr.add(prevId);
-                            nnodes.get(prevId).nbr.add(currId);
-                        }
-                    }
-                }
+    }
+
+    // one-directional links of the table go into the validation report
+    private void validate(NodeTable t) {
+
+        validation.nodes = t.n;
 
+        int[] rev = t.reverse();
+        for (int i = 0; i < t.n; i++) {
+            for (int j = t.nbr0[i]; j < t.nbr0[i+1]; j++) {
+                if (rev[j]<0) {
+                    validation.asymmetricLinks++;
+                    validation.asymmetricSamples = SwcValidation.sample(validation.asymmetricSamples, ids[i]);
+                }
             }
+        }
 
-            // remove duplicate neighbouring links
-            removeduplicate(nnodes);
+        if (!validation.isValid()) IJ.log("error: " + validation.asymmetricLinks + " links without the reverse direction, " + validation);
+
+    }
+
+    /**
+     * read the reconstruction through its binary cache (.swcb next to the swc file),
+     * the cache is (re)written when it is missing or older than the swc file
+     */
+    public static ReadSWC load(String swcpath, boolean doTree) {
 
+        String swcpath1 = new File(swcpath).getAbsolutePath();
+
+        SwcBinary bin = SwcBinary.read(swcpath1);
+        if (bin!=null) return new ReadSWC(bin, doTree);
+
+        ReadSWC swc = new ReadSWC(swcpath1, doTree);
+
+        if (swc.ntable.n>0) {
+            try {
+                SwcBinary.write(swcpath1, swc);
+            }
+            catch (IOException e) {
+                IJ.log("warning: could not write " + SwcBinary.cachePath(swcpath1) + " (" + e.getMessage() + ")");
+            }
         }
-        else {
 
-            nnodes = new ArrayList<Node>(); // size==0
-            // don't add any nodes
+        return swc;
+
+    }
 
+    /**
+     * k-d tree over ntable, built (or read from the cache) on the first call
+     */
+    public synchronized KdTree kdtree() {
+        if (kdtree==null && bin!=null) kdtree = bin.kdtree();
+        if (kdtree==null) kdtree = new KdTree(ntable);
+        return kdtree;
+    }
+
+    /**
+     * ntable resampled to the arc-length step (Resampler), the last one is kept
+     */
+    public synchronized NodeTable resampled(float step) {
+        if (rtable==null || rstep!=step) {
+            rtable = Resampler.resample(ntable, step);
+            rstep = step;
         }
+        return rtable;
+    }
+
+    /**
+     * segment hierarchy over the links of ntable, built on the first call
+     */
+    public synchronized SegmentBvh segments() {
+        if (segments==null) segments = new SegmentBvh(ntable);
+        return segments;
+    }
 
-        if (doTree && nnodes.size()>0) bfs(nnodes, trees);
+    /**
+     * connected components of ntable, labelled on the first call
+     */
+    public synchronized Components components() {
+        if (components==null) components = Components.label(ntable);
+        return components;
+    }
 
+    /**
+     * branches of ntable, walked on the first call
+     */
+    public synchronized Branches branches() {
+        if (branches==null) branches = new Branches(ntable, components());
+        return branches;
     }
 
-    private void bfs(ArrayList<Node> nlist, ArrayList<ArrayList<Node>> trees){
+    /**
+     * node classes of ntable, classified on the first call
+     */
+    public synchronized Topology topology() {
+        if (topology==null) topology = new Topology(ntable);
+        return topology;
+    }
+
+    /**
+     * voxel grid over ntable, built on the first call
+     */
+    public synchronized VoxelGrid grid() {
+        if (grid==null) grid = new VoxelGrid(ntable, minX, maxX, minY, maxY, minZ, maxZ);
+        return grid;
+    }
+
+    /**
+     * rough heap size of the structures built so far over ntable (k-d tree, grid, segments, resampled table,
+     * components, branches, topology), they are kept with the reconstruction (SwcCache counts them),
+     * not synchronized, so that it does not wait for a structure that is being built
+     */
+    public long indexBytes() {
+
+        long n = ntable.n, e = ntable.nbr.length;
+        long bytes = 0;
+
+        NodeTable rt = rtable;
+        Components cs = components;
+        Branches bs = branches;
+        Topology tp = topology;
+
+        if (kdtree!=null)   bytes += n*(3*4+1);                         // coordinates + axis
+        if (grid!=null)     bytes += n*(3*4+4+4);                       // coordinates, bucket offsets
+        if (segments!=null) bytes += (e/2)*(6*4) + (e/2)*(6*4);         // end points, tree boxes
+        if (rt!=null)       bytes += (long)rt.n*(4*4+1+4+4+4) + (long)rt.nbr.length*4;
+        if (cs!=null)       bytes += n*(4+4) + (cs.count+1)*4L;         // comp, nodes, start
+        if (bs!=null)       bytes += n*4 + e*4 + bs.count*(4+4+4L);
+        if (tp!=null)       bytes += n*(1+4) + ((long)tp.branching.length + tp.terminals.length)*4;
+
+        return bytes;
+
+    }
+
+    private void bfs(NodeTable t, ArrayList<Node> nlist, ArrayList<ArrayList<Node>> trees){
 
         /**
          *  breadth-first search (BFS) to traverse the tree from seed node jotting the number of nodes to reach seed node
@@ -205,139 +377,124 @@ public class ReadSWC {
          *
          */
 
-        ArrayList[] discovered = disclist(nlist); // initialize discovered list
+        // components are labelled first (parallel union-find), their trees are extracted in parallel,
+        // in the order of their smallest nodes (the seeds), components without links have no tree
+        Components comps = Components.label(t);
 
-        int seed; // index of the undiscovered from nlist
-        int[] n2t = new int[nlist.size()]; // node list index -> tree list index
+        TreeTask task = new TreeTask(t, nlist, comps, t.reverse(), 0, comps.count);
+        NdistCalculator.getPool().invoke(task);
 
-        while ((seed=undiscidx(discovered))!=-1) {
+        for (ArrayList<Node> tree : task.out) if (tree!=null) trees.add(tree);
 
-            BfsQueue bfsQueue = new BfsQueue();
-            Arrays.fill(n2t, Integer.MIN_VALUE);
-
-            ArrayList<Node> tree = new ArrayList<Node>();
-
-            //***
-            tree.add(new Node( nlist.get(seed)) );
-            n2t[seed] = tree.size()-1;
-            //***
+    }
 
-            // add the neighbors to the queue and label them as discovered
-            for (int j = 0; j <nlist.get(seed).nbr.size(); j++) {
-                int next = nlist.get(seed).nbr.get(j);
-                // enqueue(), add to FIFO structure, http://en.wikipedia.org/wiki/Queue_%28abstract_data_type%29
-                bfsQueue.enqueue(new int[]{seed, next});
-                discovered[seed].set(j, true);                                 // set label to discovered in both neighbouting index lists
-                discovered[next].set(nlist.get(next).nbr.indexOf(seed), true); // index where the background link was found
-            }
+    /**
+     * BFS tree of the component c, links are taken from s.t (same nodes and neighbour order as nlist),
+     * every link has one bit for each direction in discovered (component slots, bit lbase[v]+j-nbr0[v] for the
+     * slot j of node v), both bits are set together when the link is discovered
+     */
+    static ArrayList<Node> bfs(TreeTask s, int c, BfsQueue bfsQueue, long[] discovered) {
 
-//            IJ.log("seed=" + seed + "|q|" + bfsQueue.size());
+        NodeTable t = s.t;
+        ArrayList<Node> nlist = s.nlist;
+        int[] rev = s.rev, n2t = s.n2t, lbase = s.lbase;
 
-            while (bfsQueue.hasItems()) {
+        // seed is the first node of the component that has links
+        int seed = -1;
+        for (int k = s.comps.start[c]; k < s.comps.start[c+1] && seed<0; k++)
+            if (t.degree(s.comps.nodes[k])>0) seed = s.comps.nodes[k];
 
-                // dequeue(), take from FIFO structure, http://en.wikipedia.org/wiki/Queue_%28abstract_data_type%29
-                int [] getLnk = (int[]) bfsQueue.dequeue();
+        ArrayList<Node> tree = new ArrayList<Node>();
 
-                // next neighbour at the time it was added to the queue becomes current
-                int prev = getLnk[0]; //Q.get(Q.size()-1)[0];
-                int curr = getLnk[1]; //Q.get(Q.size()-1)[1];
+        //***
+        tree.add(new Node( nlist.get(seed)) );
+        n2t[seed] = tree.size()-1;
+        //***
 
-                //***
-                tree.add(new Node(nlist.get(curr), n2t[prev]));
-                n2t[curr] = tree.size()-1;
-                //***
+        // add the neighbors to the queue and label them as discovered
+        for (int j = t.nbr0[seed]; j < t.nbr0[seed+1]; j++) {
+            if (discovered(t, lbase, rev, discovered, seed, j)) continue; // repeated slot of a link
+            bfsQueue.enqueue(seed, t.nbr[j]);
+            discover(t, lbase, rev, discovered, seed, j);
+        }
 
-                while(Collections.frequency(discovered[curr], false)==1) { // step further if only one undiscovered
+        while (bfsQueue.hasItems()) {
 
-                    prev = curr;
-                    curr = nlist.get(curr).nbr.get(discovered[curr].indexOf(false));
+            // next neighbour at the time it was added to the queue becomes current
+            long lnk = bfsQueue.dequeue();
+            int prev = BfsQueue.prev(lnk);
+            int curr = BfsQueue.curr(lnk);
 
-//                System.out.println(prev + " -- " + curr);
-//                    connectivity[curr] = connectivity[prev] + 1;
-                    //***
-                    tree.add(new Node(nlist.get(curr), n2t[prev]));
-                    n2t[curr] = tree.size()-1;
-                    //***
+            //***
+            tree.add(new Node(nlist.get(curr), n2t[prev]));
+            n2t[curr] = tree.size()-1;
+            //***
 
-                    // mark as discovered the connections curr--prev and prev--curr
-                    discovered[curr].set(nlist.get(curr).nbr.indexOf(prev), true);
-                    discovered[prev].set(nlist.get(prev).nbr.indexOf(curr), true);
+            int j;
+            while ((j = singleUndiscovered(t, lbase, rev, discovered, curr))>=0) { // step further if only one undiscovered
 
-                }
+                prev = curr;
+                curr = t.nbr[j];
 
-                // there is !=1 neighbour
-                for (int i = 0; i < discovered[curr].size(); i++) {
-                    boolean isDiscovered =  (Boolean) discovered[curr].get(i);
-                    if (!isDiscovered) { // if it was not discovered (0,2,3...)
-                        int next = nlist.get(curr).nbr.get(i);
+                //***
+                tree.add(new Node(nlist.get(curr), n2t[prev]));
+                n2t[curr] = tree.size()-1;
+                //***
 
-                        bfsQueue.enqueue(new int[]{curr, next});   // enqueue()
+                // mark as discovered the connections curr--prev and prev--curr
+                discover(t, lbase, rev, discovered, prev, j);
 
-                        discovered[curr].set(i, true); // label as discovered
-                        discovered[next].set(nlist.get(next).nbr.indexOf(curr), true);
+            }
 
-                    }
+            // there is !=1 neighbour
+            for (int i = t.nbr0[curr]; i < t.nbr0[curr+1]; i++) {
+                if (!discovered(t, lbase, rev, discovered, curr, i)) { // if it was not discovered (0,2,3...)
+                    bfsQueue.enqueue(curr, t.nbr[i]);
+                    discover(t, lbase, rev, discovered, curr, i);
                 }
+            }
 
-            } // while there are elements in the queue
-
-            trees.add(tree);
+        } // while there are elements in the queue
 
-        }
+        return tree;
 
     }
 
-    private void removeduplicate(ArrayList<Node> nlist) {
+    private static boolean isSet(long[] bits, int i) {
+        return (bits[i>>>6] & (1L<<i))!=0;
+    }
 
-        // remove duplicate neighbourhood links
-        for (int i = 0; i < nlist.size(); i++) {
-            if (nlist.get(i)!=null) {
-                Set<Integer> set = new HashSet<Integer>();
-                set.addAll(nlist.get(i).nbr);
-                nlist.get(i).nbr.clear();
-                nlist.get(i).nbr.addAll(set);
-            }
-        }
-        // check if the neighborhoods are conistent
-        for (int i = 0; i < nlist.size(); i++) {
-            if (nlist.get(i)!=null) {
-                for (int j = 0; j < nlist.get(i).nbr.size(); j++) {
-                    int nbr_idx = nlist.get(i).nbr.get(j);
-                    if (nbr_idx>0) {
-                        if (Collections.frequency(nlist.get(nbr_idx).nbr, i)!=1)
-                            IJ.log("error: missing bidirectional link " + i + " -- " + nbr_idx);
-                    }
-                }
-            }
+    // link slot j of node v and its reverse direction (if the table has it, a one-directional link can not be
+    // walked back: the target row has no slot towards v)
+    private static void discover(NodeTable t, int[] lbase, int[] rev, long[] bits, int v, int j) {
+        int b = lbase[v]+j-t.nbr0[v];
+        bits[b>>>6] |= 1L<<b;
+        if (rev[j]>=0) {
+            int w = t.nbr[j];
+            b = lbase[w]+rev[j]-t.nbr0[w];
+            bits[b>>>6] |= 1L<<b;
         }
     }
 
-    private ArrayList[] disclist(ArrayList<Node> nlist) {
-        // will be used to book-keep discovered traces (graph vertices)
-        ArrayList[] d = new ArrayList[nlist.size()];
-        for (int i = 0; i < nlist.size(); i++) {
-
-            d[i] = new ArrayList<Boolean>();
-
-            if (nlist.get(i)!=null) {
-                for (int j = 0; j < nlist.get(i).nbr.size(); j++) {
-                    d[i].add(false);
-                }
-            }
-
-
-        }
-        return d;
+    // slot j of node v or its reverse direction was discovered (a repeated slot of the same link is then
+    // discovered too: the reverse of a one-sided repeat points at the slot that was discovered)
+    private static boolean discovered(NodeTable t, int[] lbase, int[] rev, long[] bits, int v, int j) {
+        if (isSet(bits, lbase[v]+j-t.nbr0[v])) return true;
+        if (rev[j]<0) return false;
+        int w = t.nbr[j];
+        return isSet(bits, lbase[w]+rev[j]-t.nbr0[w]);
     }
 
-    private int undiscidx(ArrayList[] d) {
-        for (int i = 0; i < d.length; i++) {
-            if (d[i].size()>0) {
-                boolean dd = (Boolean) d[i].get(0);
-                if (!dd) return i;
+    // link slot of the only undiscovered link of node i, -1 if there are none or more
+    private static int singleUndiscovered(NodeTable t, int[] lbase, int[] rev, long[] bits, int i) {
+        int found = -1;
+        for (int j = t.nbr0[i]; j < t.nbr0[i+1]; j++) {
+            if (!discovered(t, lbase, rev, bits, i, j)) {
+                if (found>=0) return -1;
+                found = j;
             }
         }
-        return -1;
+        return found;
     }
 
     private static String getFileExtension(String file_path)
@@ -353,106 +510,133 @@ public class ReadSWC {
     }
 
     public float[][] spatdist1(ReadSWC compswc, float dst, ImagePlus mask) {
+        return spatdist1(compswc, dst, mask, NdistCalculator.KDTREE);
+    }
 
-        if (mask==null)     NdistCalculator.load(nnodes, compswc.nnodes);
-        else                NdistCalculator.load(nnodes, compswc.nnodes, mask);
-
-        int totalA = NdistCalculator.nlistA.size();
-        int totalB = NdistCalculator.nlistB.size();
-
-        int CPU_NR = Runtime.getRuntime().availableProcessors();
-
-        NdistCalculator jobs[] = new NdistCalculator[CPU_NR];
+    /**
+     * @param search nearest neighbour search engine, NdistCalculator.KDTREE, GRID, BRUTE, SEGMENT or QUANT
+     */
+    public float[][] spatdist1(ReadSWC compswc, float dst, ImagePlus mask, int search) {
+        return spatdist1(compswc, NdistCalculator.sweep(0.5f, 0.5f, dst), mask, search);
+    }
 
-        for (int i = 0; i < jobs.length; i++) {
-            jobs[i] = new NdistCalculator(i * totalA / CPU_NR, (i + 1) * totalA / CPU_NR, i * totalB / CPU_NR, (i + 1) * totalB / CPU_NR);
-            jobs[i].start();
-        }
+    /**
+     * @param sval thresholds S (ascending), all evaluated from one distance computation
+     */
+    public float[][] spatdist1(ReadSWC compswc, float[] sval, ImagePlus mask, int search) {
+        return spatdist1(compswc, sval, mask, search, 0);
+    }
 
-        for (int i = 0; i < jobs.length; i++) {
-            try {
-                jobs[i].join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+    /**
+     * @param step both reconstructions are resampled to this arc-length step before the comparison (0: not resampled)
+     */
+    public float[][] spatdist1(ReadSWC compswc, float[] sval, ImagePlus mask, int search, float step) {
+        return spatdist1(compswc, sval, mask, search, step, 0);
+    }
 
-        return NdistCalculator.compute(dst);
+    /**
+     * @param eps relative error bound of the approximate KDTREE search (0: exact), every distance d comes out
+     *            within [d, (1+eps)d], so SD lies within [SD, (1+eps)SD], while the count of distances at or above S
+     *            lies between the exact counts at S and at S/(1+eps) (so percSSD lies between its exact values at S and
+     *            at S/(1+eps), P and R between theirs), SSD is a mean over that other set of nodes and has no
+     *            multiplicative bound (it can also come out lower than the exact one), results near a decision
+     *            threshold need a recompute with eps=0
+     */
+    public float[][] spatdist1(ReadSWC compswc, float[] sval, ImagePlus mask, int search, float step, float eps) {
+        return distances(compswc, mask, search, step, eps).compute(sval);
+    }
 
+    /**
+     * closest node distances towards compswc (spatdist1() without the measures), the returned calculator holds
+     * dAB and dBA for compute() and for the DistanceBreakdown of both sides
+     */
+    public NdistCalculator distances(ReadSWC compswc, ImagePlus mask, int search, float step, float eps) {
+        return distances(compswc, mask, search, step, eps, 0);
     }
 
-    public float[] spatdist(ReadSWC compswc, float dst, ImagePlus mask) {
+    /**
+     * @param scale QUANT grid steps per coordinate unit (NdistCalculator.scale), 0: detected (power of two grids only)
+     */
+    public NdistCalculator distances(ReadSWC compswc, ImagePlus mask, int search, float step, float eps, double scale) {
 
-        if (mask==null) SpatDistCalculator.load(nnodes, compswc.nnodes);        // if there is no soma mask
-        else            SpatDistCalculator.load(nnodes, compswc.nnodes, mask);  // if there is soma mask (those that are 255 are skipped from the evaluation)
-        int total = SpatDistCalculator.nlistA.size();
-        int CPU_NR = Runtime.getRuntime().availableProcessors();
+        NodeTable tA = (step>0)? resampled(step) : ntable;
+        NodeTable tB = (step>0)? compswc.resampled(step) : compswc.ntable;
 
-        SpatDistCalculator jobs[] = new SpatDistCalculator[CPU_NR];
+        NdistCalculator calc = (mask==null)? new NdistCalculator(tA, tB) : new NdistCalculator(tA, tB, mask);
 
-        for (int i = 0; i < jobs.length; i++) {
-            jobs[i] = new SpatDistCalculator(i * total / CPU_NR, (i + 1) * total / CPU_NR);
-            jobs[i].start();
-        }
+        calc.scale = scale;
+        calc.index(search, this, compswc);
+        calc.eps = eps;
 
-        for (int i = 0; i < jobs.length; i++) {
-            try {
-                jobs[i].join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        calc.run();
 
-        return SpatDistCalculator.spatdist(dst);
+        return calc;
 
     }
 
-    public void getBifurcations(String outSwcPath){
+    public float[] spatdist(ReadSWC compswc, float dst, ImagePlus mask) {
 
-        ArrayList<Node> bifurcationNodes =  new ArrayList<Node>();
+        SpatDistCalculator calc = (mask==null)?
+                new SpatDistCalculator(ntable, compswc.ntable) :        // if there is no soma mask
+                new SpatDistCalculator(ntable, compswc.ntable, mask);   // if there is soma mask (those that are 255 are skipped from the evaluation)
+        calc.run();
 
-        bifurcationNodes.add(null); // first node is dummy so that indexing starts from 1
+        return calc.spatdist(dst);
 
-        for (int i = 0; i < nnodes.size(); i++) {
-            if (nnodes.get(i) != null) {
-                if (nnodes.get(i).nbr.size() >= 3) {
-                    bifurcationNodes.add(new Node(nnodes.get(i), -1));
-                }
-            }
-        }
+    }
 
-        saveNodelist(bifurcationNodes, outSwcPath, -1, "##n,type,x,y,z,radius,parent");
+    /**
+     * nodes with 3 or more neighbours (bifurcations, multifurcations and branching soma nodes) as swc rows without links
+     */
+    public void getBifurcations(String outSwcPath){
+        saveNodes(topology().branching, outSwcPath, -1, "##n,type,x,y,z,radius,parent");
+    }
 
+    /**
+     * nodes with at most one neighbour as swc rows without links
+     */
+    public void getTerminals(String outSwcPath){
+        saveNodes(topology().terminals, outSwcPath, -1, "##n,type,x,y,z,radius,parent");
     }
 
-    private void saveNodelist(ArrayList<Node> nX, String SwcName, int type, String SwcHeader) {
+    /**
+     * arc length of every branch (Branches) as csv rows
+     */
+    public void getBranchLengths(String outCsvPath){
 
-        cleanfile(SwcName);
+        Branches br = branches();
 
         try {
+            BufferedFormatter f = new BufferedFormatter(outCsvPath);
+            f.print("branch,component,nodes,length").println();
+            for (int b = 0; b < br.count; b++)
+                f.print(b).print(',').print(br.component[b]).print(',').print(br.nodes[b]).print(',').print(br.length[b], 3).println();
+            f.close();
+        } catch (IOException e) {
+            IJ.log("error: could not write " + outCsvPath + " (" + e.getMessage() + ")");
+        }
 
-            PrintWriter logWriter = new PrintWriter(new BufferedWriter(new FileWriter(SwcName, true)));
-
-            logWriter.println(SwcHeader); // add swc header
+    }
 
-            for (int i = 0; i < nX.size(); i++) { // nX[0] = null
+    // table nodes idx written as rows numbered from 1, with their own type (type<0) or the given one, parent -1
+    private void saveNodes(int[] idx, String SwcName, int type, String SwcHeader) {
 
-                if (nX.get(i) == null) continue;
+        try {
 
-                Node nn = nX.get(i);
+            BufferedFormatter f = new BufferedFormatter(SwcName);
 
-                if (true || nn.nbr.size()==0) {
-                    logWriter.println(
-                            IJ.d2s(i, 0)+" "+IJ.d2s((type<0)?nn.type:type, 0)+" "+
-                                    IJ.d2s(nn.x, 4)+" "+
-                                    IJ.d2s(nn.y, 4)+" "+
-                                    IJ.d2s(nn.z, 4)+" "+
-                                    IJ.d2s(nn.r, 3)+" "+"-1");
-                }
+            f.print(SwcHeader).println(); // add swc header
 
+            for (int k = 0; k < idx.length; k++) {
+                int i = idx[k];
+                f.print(k+1).print(' ').print((type<0)? nnodes.get(i).type : type).print(' ')
+                        .print(ntable.x[i], 4).print(' ')
+                        .print(ntable.y[i], 4).print(' ')
+                        .print(ntable.z[i], 4).print(' ')
+                        .print(ntable.r[i], 3).print(' ').print("-1").println();
             }
 
-            logWriter.close();
+            f.close();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -472,22 +656,140 @@ public class ReadSWC {
 
 }
 
-class BfsQueue<E> {
-    private LinkedList<E> list = new LinkedList<E>();
-    public void enqueue(E item) {
-        list.addLast(item);
+/**
+ * tree extraction for the components [lo, hi), split into tasks of about MIN_NODES nodes,
+ * every component is extracted by one task, so the shared per-node arrays are written by one thread per node
+ */
+class TreeTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    static int MIN_NODES = 1<<14;
+
+    final NodeTable         t;
+    final ArrayList<Node>   nlist;
+    final Components        comps;
+    final int[]             rev;
+    final int[]             n2t;    // node list index -> tree list index (of the last copy added to its tree)
+    final int[]             lbase;  // node -> first bit of its link slots in the bitset of its component
+    final ArrayList<Node>[] out;    // component -> tree (null if it has no links)
+
+    private int lo, hi;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TreeTask(NodeTable t, ArrayList<Node> nlist, Components comps, int[] rev, int lo, int hi) {
+        this.t      = t;
+        this.nlist  = nlist;
+        this.comps  = comps;
+        this.rev    = rev;
+        this.n2t    = new int[t.n];
+        this.lbase  = new int[t.n];
+        this.out    = new ArrayList[comps.count];
+        this.lo     = lo;
+        this.hi     = hi;
     }
-    public E dequeue() {
-        return list.poll();
+
+    private TreeTask(TreeTask parent, int lo, int hi) {
+        this.t      = parent.t;
+        this.nlist  = parent.nlist;
+        this.comps  = parent.comps;
+        this.rev    = parent.rev;
+        this.n2t    = parent.n2t;
+        this.lbase  = parent.lbase;
+        this.out    = parent.out;
+        this.lo     = lo;
+        this.hi     = hi;
     }
-    public boolean hasItems() {
-        return !list.isEmpty();
+
+    protected void compute() {
+
+        int nodes = comps.start[hi] - comps.start[lo];
+
+        if (nodes<=MIN_NODES || hi-lo==1) {
+
+            BfsQueue bfsQueue = new BfsQueue(64);
+            long[] discovered = new long[1]; // reused by the components of this task
+
+            for (int c = lo; c < hi; c++) {
+
+                int slots = 0;
+                for (int k = comps.start[c]; k < comps.start[c+1]; k++) {
+                    lbase[comps.nodes[k]] = slots;
+                    slots += t.degree(comps.nodes[k]);
+                }
+                if (slots==0) continue;
+
+                int words = (slots+63)>>>6;
+                if (discovered.length<words)    discovered = new long[Math.max(words, 2*discovered.length)];
+                else                            Arrays.fill(discovered, 0, words, 0L);
+
+                out[c] = ReadSWC.bfs(this, c, bfsQueue, discovered);
+
+            }
+
+            return;
+
+        }
+
+        // split at the component that holds the middle node
+        int half = comps.start[lo] + nodes/2;
+        int a = lo+1, b = hi-1;
+        while (a<b) {
+            int m = (a+b)>>>1;
+            if (comps.start[m]<half)    a = m+1;
+            else                        b = m;
+        }
+
+        invokeAll(new TreeTask(this, lo, a), new TreeTask(this, a, hi));
+
+    }
+
+}
+
+/**
+ * fifo of links (prev, curr) for the tree extraction, packed into longs in a ring buffer that doubles when full
+ */
+class BfsQueue {
+
+    private long[] ring;
+    private int head = 0, count = 0;
+
+    BfsQueue(int capacity) {
+        ring = new long[Math.max(capacity, 2)];
     }
-    public int size() {
-        return list.size();
+
+    void enqueue(int prev, int curr) {
+        if (count==ring.length) {
+            long[] grown = new long[2*ring.length];
+            for (int k = 0; k < count; k++) grown[k] = ring[(head+k)%ring.length];
+            ring = grown;
+            head = 0;
+        }
+        ring[(head+count)%ring.length] = ((long)prev<<32) | (curr & 0xffffffffL);
+        count++;
+    }
+
+    long dequeue() {
+        long v = ring[head];
+        head = (head+1)%ring.length;
+        count--;
+        return v;
     }
-//    public void addItems(BfsQueue<? extends E> q) {
-//        while (q.hasItems())
-//            list.addLast(q.dequeue());
-//    }
+
+    boolean hasItems() {
+        return count>0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    static int prev(long lnk) {
+        return (int) (lnk>>>32);
+    }
+
+    static int curr(long lnk) {
+        return (int) lnk;
+    }
+
 }
@@ -0,0 +1,224 @@
+package com.braincadet.ndist;
+
+import java.util.Arrays;
+
+/**
+ * resampling of the reconstruction graph to a fixed arc-length step, so that the node-weighted measures
+ * do not depend on how densely the tracer sampled the branches
+ * nodes with degree other than 2 (soma, tips, bifurcations, isolated nodes) are kept, every chain of degree 2 nodes
+ * between them is replaced with ceil(L/step) equal pieces of its arc length L, x, y, z and r are interpolated linearly
+ * (closed loops of degree 2 nodes keep their first node as the anchor)
+ * resampled node takes the type and the id (ReadSWC.nnodes index) of the original node it follows on the chain,
+ * and the link slot of the piece it lies on (NodeTable.link, -1 for the kept nodes), so that it can be attributed
+ * to the branch of its chain (the node it follows can be a bifurcation or soma that belongs to another branch)
+ */
+public class Resampler {
+
+    private NodeTable t;
+    private float step;
+
+    // output, grown as the nodes and links are added
+    private int     n = 0, e = 0;
+    private float[] x, y, z, r;
+    private byte[]  type;
+    private int[]   id;
+    private int[]   link;
+    private int[]   ea, eb; // links
+
+    private int[]   map;        // kept node -> output index
+    private boolean[] visited;  // degree 2 nodes that were resampled
+
+    // chain being resampled (reused)
+    private int[]   chain = new int[16];
+    private int[]   cslot = new int[16]; // cslot[k]: slot of the link chain[k-1] -> chain[k]
+    private int     clen;
+
+    private Resampler(NodeTable t, float step) {
+
+        this.t = t;
+        this.step = step;
+
+        int cap = Math.max(t.n, 16);
+        x = new float[cap];
+        y = new float[cap];
+        z = new float[cap];
+        r = new float[cap];
+        type = new byte[cap];
+        id = new int[cap];
+        link = new int[cap];
+        ea = new int[cap];
+        eb = new int[cap];
+
+        map = new int[t.n];
+        Arrays.fill(map, -1);
+        visited = new boolean[t.n];
+
+    }
+
+    /**
+     * @param step arc length between the resampled nodes (>0)
+     */
+    public static NodeTable resample(NodeTable t, float step) {
+
+        Resampler rs = new Resampler(t, step);
+
+        // kept nodes first, in the table order
+        for (int i = 0; i < t.n; i++)
+            if (t.degree(i)!=2) rs.map[i] = rs.add(t, i, 0, i, -1);
+
+        // chains that start at the kept nodes
+        for (int i = 0; i < t.n; i++) {
+            if (t.degree(i)==2) continue;
+            for (int j = t.nbr0[i]; j < t.nbr0[i+1]; j++) {
+                int next = t.nbr[j];
+                if (t.degree(next)==2) {
+                    if (!rs.visited[next]) rs.chain(i, j);
+                }
+                else if (i<next) rs.chain(i, j); // direct link between kept nodes, taken once
+            }
+        }
+
+        // loops without kept nodes
+        for (int i = 0; i < t.n; i++) {
+            if (t.degree(i)==2 && !rs.visited[i]) {
+                rs.visited[i] = true;
+                rs.map[i] = rs.add(t, i, 0, i, -1);
+                rs.chain(i, t.nbr0[i]);
+            }
+        }
+
+        return rs.table();
+
+    }
+
+    // follow the chain from the kept node start through its link slot j until the next kept node, and resample it
+    private void chain(int start, int j) {
+
+        clen = 0;
+        push(start, -1);
+
+        int prev = start, curr = t.nbr[j];
+
+        while (t.degree(curr)==2 && !visited[curr]) {
+            visited[curr] = true;
+            push(curr, j);
+            j = (t.nbr[t.nbr0[curr]]!=prev)? t.nbr0[curr] : t.nbr0[curr]+1;
+            prev = curr;
+            curr = t.nbr[j];
+        }
+
+        push(curr, j); // kept node (or the anchor of a loop)
+
+        // arc length
+        double len = 0;
+        for (int k = 1; k < clen; k++) len += dist(chain[k-1], chain[k]);
+
+        int pieces = (int) Math.max(1, Math.ceil(len/step));
+        double spacing = len/pieces;
+
+        int last = map[start];
+        int k = 1;              // sample lies on the piece chain[k-1] -- chain[k]
+        double at = 0;          // arc length at chain[k-1]
+
+        for (int s = 1; s < pieces; s++) {
+
+            double target = s*spacing;
+
+            while (k<clen-1 && at + dist(chain[k-1], chain[k]) < target) {
+                at += dist(chain[k-1], chain[k]);
+                k++;
+            }
+
+            double d = dist(chain[k-1], chain[k]);
+            float w = (float) ((d>0)? Math.min(Math.max((target-at)/d, 0), 1) : 0);
+
+            int curr1 = add(t, chain[k-1], w, chain[k], cslot[k]);
+            link(last, curr1);
+            last = curr1;
+
+        }
+
+        link(last, map[curr]);
+
+    }
+
+    private double dist(int i, int j) {
+        double dx = t.x[i]-t.x[j], dy = t.y[i]-t.y[j], dz = t.z[i]-t.z[j];
+        return Math.sqrt(dx*dx + dy*dy + dz*dz);
+    }
+
+    private void push(int i, int slot) {
+        if (clen==chain.length) {
+            chain = Arrays.copyOf(chain, 2*clen);
+            cslot = Arrays.copyOf(cslot, 2*clen);
+        }
+        chain[clen] = i;
+        cslot[clen++] = slot;
+    }
+
+    // node interpolated between the table nodes i and j (w=0 gives i), lying on the link slot (-1: kept node)
+    private int add(NodeTable t, int i, float w, int j, int slot) {
+
+        if (n==x.length) {
+            int cap = 2*n;
+            x = Arrays.copyOf(x, cap);
+            y = Arrays.copyOf(y, cap);
+            z = Arrays.copyOf(z, cap);
+            r = Arrays.copyOf(r, cap);
+            type = Arrays.copyOf(type, cap);
+            id = Arrays.copyOf(id, cap);
+            link = Arrays.copyOf(link, cap);
+        }
+
+        x[n]    = t.x[i] + w*(t.x[j]-t.x[i]);
+        y[n]    = t.y[i] + w*(t.y[j]-t.y[i]);
+        z[n]    = t.z[i] + w*(t.z[j]-t.z[i]);
+        r[n]    = t.r[i] + w*(t.r[j]-t.r[i]);
+        type[n] = t.type[i];
+        id[n]   = t.id[i];
+        link[n] = slot;
+
+        return n++;
+
+    }
+
+    private void link(int a, int b) {
+        if (e==ea.length) {
+            ea = Arrays.copyOf(ea, 2*e);
+            eb = Arrays.copyOf(eb, 2*e);
+        }
+        ea[e] = a;
+        eb[e] = b;
+        e++;
+    }
+
+    private NodeTable table() {
+
+        NodeTable out = new NodeTable(n, 2*e);
+
+        System.arraycopy(x, 0, out.x, 0, n);
+        System.arraycopy(y, 0, out.y, 0, n);
+        System.arraycopy(z, 0, out.z, 0, n);
+        System.arraycopy(r, 0, out.r, 0, n);
+        System.arraycopy(type, 0, out.type, 0, n);
+        System.arraycopy(id, 0, out.id, 0, n);
+        out.link = Arrays.copyOf(link, n);
+
+        // links into compressed rows, both directions
+        for (int k = 0; k < e; k++) {
+            out.nbr0[ea[k]+1]++;
+            out.nbr0[eb[k]+1]++;
+        }
+        for (int i = 0; i < n; i++) out.nbr0[i+1] += out.nbr0[i];
+
+        int[] fill = Arrays.copyOf(out.nbr0, n);
+        for (int k = 0; k < e; k++) {
+            out.nbr[fill[ea[k]]++] = eb[k];
+            out.nbr[fill[eb[k]]++] = ea[k];
+        }
+
+        return out;
+
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.braincadet.ndist;
+
+/**
+ * bounding volume hierarchy over the segments (links) of a node table, for the node-to-segment distance
+ * every link i--j gives one segment, nodes without links are kept as zero-length segments
+ * tree is implicit over the segment order: node k covers the segments [lo, hi) and keeps their bounding box,
+ * children split the range at the median of the segment centers along the widest axis
+ * built once, read-only afterwards (can be queried from several threads)
+ */
+public class SegmentBvh {
+
+    private static int LEAF_SIZE = 4;   // ranges with this many segments or less are scanned
+
+    private float[] ax, ay, az, bx, by, bz; // segment end points, reordered by the tree
+    private int     n;                      // number of segments
+
+    // tree nodes, node k has the children 2k+1 and 2k+2 (heap layout), its range is known while descending
+    private float[] bmin, bmax;             // 3 floats per tree node
+
+    public SegmentBvh(NodeTable t) {
+
+        int cnt = 0;
+        for (int i = 0; i < t.n; i++) {
+            if (t.degree(i)==0) cnt++;
+            for (int j = t.nbr0[i]; j < t.nbr0[i+1]; j++) if (i<t.nbr[j]) cnt++;
+        }
+
+        n = cnt;
+        ax = new float[n]; ay = new float[n]; az = new float[n];
+        bx = new float[n]; by = new float[n]; bz = new float[n];
+
+        int k = 0;
+        for (int i = 0; i < t.n; i++) {
+            if (t.degree(i)==0) set(k++, t, i, i);
+            for (int j = t.nbr0[i]; j < t.nbr0[i+1]; j++) if (i<t.nbr[j]) set(k++, t, i, t.nbr[j]);
+        }
+
+        int nodes = 1;
+        while (nodes<2*Math.max(n, 1)) nodes <<= 1; // enough for the median splits down to the leaves
+        bmin = new float[3*nodes];
+        bmax = new float[3*nodes];
+
+        if (n>0) build(0, 0, n);
+
+    }
+
+    private void set(int k, NodeTable t, int i, int j) {
+        ax[k] = t.x[i]; ay[k] = t.y[i]; az[k] = t.z[i];
+        bx[k] = t.x[j]; by[k] = t.y[j]; bz[k] = t.z[j];
+    }
+
+    public int size() {
+        return n;
+    }
+
+    private void build(int node, int lo, int hi) {
+
+        float x0 = Float.POSITIVE_INFINITY, y0 = Float.POSITIVE_INFINITY, z0 = Float.POSITIVE_INFINITY;
+        float x1 = Float.NEGATIVE_INFINITY, y1 = Float.NEGATIVE_INFINITY, z1 = Float.NEGATIVE_INFINITY;
+
+        for (int i = lo; i < hi; i++) {
+            x0 = Math.min(x0, Math.min(ax[i], bx[i])); x1 = Math.max(x1, Math.max(ax[i], bx[i]));
+            y0 = Math.min(y0, Math.min(ay[i], by[i])); y1 = Math.max(y1, Math.max(ay[i], by[i]));
+            z0 = Math.min(z0, Math.min(az[i], bz[i])); z1 = Math.max(z1, Math.max(az[i], bz[i]));
+        }
+
+        bmin[3*node] = x0; bmin[3*node+1] = y0; bmin[3*node+2] = z0;
+        bmax[3*node] = x1; bmax[3*node+1] = y1; bmax[3*node+2] = z1;
+
+        if (hi-lo<=LEAF_SIZE) return;
+
+        // widest axis
+        int axis = 0;
+        if (y1-y0>x1-x0) axis = 1;
+        if (z1-z0>((axis==0)?(x1-x0):(y1-y0))) axis = 2;
+
+        int mid = (lo+hi)>>>1;
+        select(lo, hi-1, mid, axis);
+
+        build(2*node+1, lo, mid);
+        build(2*node+2, mid, hi);
+
+    }
+
+    // doubled center of the segment along the axis
+    private float center(int i, int axis) {
+        return (axis==0)? ax[i]+bx[i] : ((axis==1)? ay[i]+by[i] : az[i]+bz[i]);
+    }
+
+    // quickselect on the segment centers, same scheme as KdTree.select()
+    private void select(int lo, int hi, int k, int axis) {
+
+        while (hi>lo) {
+
+            int m = (lo+hi)>>>1;
+            if (center(m, axis)<center(lo, axis)) swap(m, lo);
+            if (center(hi, axis)<center(lo, axis)) swap(hi, lo);
+            if (center(hi, axis)<center(m, axis)) swap(hi, m);
+            float pivot = center(m, axis);
+
+            int i = lo, j = hi;
+            while (i<=j) {
+                while (center(i, axis)<pivot) i++;
+                while (center(j, axis)>pivot) j--;
+                if (i<=j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            if (k<=j)       hi = j;
+            else if (k>=i)  lo = i;
+            else            return;
+
+        }
+
+    }
+
+    private void swap(int i, int j) {
+        float t;
+        t = ax[i]; ax[i] = ax[j]; ax[j] = t;
+        t = ay[i]; ay[i] = ay[j]; ay[j] = t;
+        t = az[i]; az[i] = az[j]; az[j] = t;
+        t = bx[i]; bx[i] = bx[j]; bx[j] = t;
+        t = by[i]; by[i] = by[j]; by[j] = t;
+        t = bz[i]; bz[i] = bz[j]; bz[j] = t;
+    }
+
+    /**
+     * squared euclidean distance from (qx,qy,qz) towards the closest segment
+     */
+    public float nearest2(float qx, float qy, float qz) {
+        if (n==0) return Float.POSITIVE_INFINITY;
+        return search(0, 0, n, qx, qy, qz, Float.POSITIVE_INFINITY);
+    }
+
+    private float search(int node, int lo, int hi, float qx, float qy, float qz, float best) {
+
+        if (hi-lo<=LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                float d2 = segment2(i, qx, qy, qz);
+                if (d2<best) best = d2;
+            }
+            return best;
+        }
+
+        int mid = (lo+hi)>>>1;
+        int l = 2*node+1, r = 2*node+2;
+
+        double dl = box2(l, qx, qy, qz);
+        double dr = box2(r, qx, qy, qz);
+
+        // nearer box first, the other one only if it can still hold something closer
+        if (dl<=dr) {
+            if (dl<best) best = search(l, lo, mid, qx, qy, qz, best);
+            if (dr<best) best = search(r, mid, hi, qx, qy, qz, best);
+        }
+        else {
+            if (dr<best) best = search(r, mid, hi, qx, qy, qz, best);
+            if (dl<best) best = search(l, lo, mid, qx, qy, qz, best);
+        }
+
+        return best;
+
+    }
+
+    // squared distance towards the bounding box of the tree node (0 inside), rounded down so that it never prunes too much
+    private double box2(int node, float qx, float qy, float qz) {
+        double dx = Math.max(Math.max(bmin[3*node]-(double)qx, (double)qx-bmax[3*node]), 0);
+        double dy = Math.max(Math.max(bmin[3*node+1]-(double)qy, (double)qy-bmax[3*node+1]), 0);
+        double dz = Math.max(Math.max(bmin[3*node+2]-(double)qz, (double)qz-bmax[3*node+2]), 0);
+        return (dx*dx + dy*dy + dz*dz) * (1-1e-6);
+    }
+
+    // squared distance towards the segment i (closest point clamped to the end points)
+    private float segment2(int i, float qx, float qy, float qz) {
+
+        double ux = (double)bx[i]-ax[i], uy = (double)by[i]-ay[i], uz = (double)bz[i]-az[i];
+        double wx = (double)qx-ax[i],    wy = (double)qy-ay[i],    wz = (double)qz-az[i];
+
+        double uu = ux*ux + uy*uy + uz*uz;
+        double s = (uu>0)? Math.min(Math.max((wx*ux + wy*uy + wz*uz)/uu, 0), 1) : 0;
+
+        double dx = wx - s*ux, dy = wy - s*uy, dz = wz - s*uz;
+
+        return (float) (dx*dx + dy*dy + dz*dz);
+
+    }
+
+}
@@ -8,6 +8,8 @@ import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.TreeSet;
 
 /**
  * IJ Plugin that measures the distance between two SWC reconstructions
@@ -18,6 +20,18 @@ import java.io.*;
  * filename annottag sd ssd %ssd
  * onto eval.csv file that's located in the same directory as the first argument SWC file (swca),
  * the file is created if it does not exist
+ * loaded reconstructions stay in SwcCache, so repeated calls with the same (unchanged) gold standard do not reload it
+ * macro keys: swca, swcb, mask, search (KDTREE, GRID, BRUTE, SEGMENT: node to closest link distance, QUANT: integer kernel for voxel grid coordinates), cache (true: read/write the .swcb binary cache),
+ * tiled (true: bounded-memory comparison through temporary files, TiledDist, exact node to node distances, mask, step and the SEGMENT and QUANT search are not used),
+ * step (arc-length step both reconstructions are resampled to before the comparison, 0: not resampled),
+ * scale (QUANT grid steps per coordinate unit, e.g. 10 for coordinates on a 0.1 grid, 0: detected, which only finds
+ *   power of two grids (1/2, 1/4 ...), other grids need the scale given),
+ * eps (relative error bound of the approximate KDTREE search for screening, 0: exact, if above 0 the rows go with an EPS column
+ *   to eval_eps.csv instead, so that eval.csv keeps its columns:
+ *   SD is at most (1+eps) times the exact one, percSSD, P and R lie between their exact values at S/(1+eps) and at S,
+ *   SSD has no bound, see ReadSWC.spatdist1()),
+ * breakdown (true: distances per branch, component and node type at the largest S appended to breakdown.csv, DistanceBreakdown),
+ * S thresholds: sstart, sstep, send (or dst) for the regular sweep, slist=[0.5,1,2.5] for an arbitrary list
  * Created by miroslav on 12-5-15.
  */
 public class SpatDist implements PlugIn {
@@ -26,7 +40,16 @@ public class SpatDist implements PlugIn {
 
         String swca, swcb;
         float dst;
+        float sstart, sstep;
+        String slist;
         String maskpath;
+        String search;
+        boolean cache;
+        boolean tiled;
+        boolean breakdown;
+        float step;
+        float eps;
+        float scale;
 
         if (Macro.getOptions()==null) {
 
@@ -34,24 +57,64 @@ public class SpatDist implements PlugIn {
             gd.addStringField("A", 	    Prefs.get("com.braincadet.ndist.swca", System.getProperty("user.home")), 60);
             gd.addStringField("B",      Prefs.get("com.braincadet.ndist.swcb", System.getProperty("user.home")), 60);
             gd.addNumericField("S",     Prefs.get("com.braincadet.ndist.dst", 2f), 1, 10, "");
+            gd.addNumericField("S_START", Prefs.get("com.braincadet.ndist.sstart", .5f), 2, 10, "");
+            gd.addNumericField("S_STEP",  Prefs.get("com.braincadet.ndist.sstep", .5f), 2, 10, "");
+            gd.addStringField("S_LIST", Prefs.get("com.braincadet.ndist.slist", ""), 60);
+            gd.addMessage("(S sweep goes from S_START to S in S_STEP steps, S_LIST (comma separated) replaces it if not empty)");
             gd.addStringField("MASK",   Prefs.get("com.braincadet.ndist.mask", ""), 60);
             gd.addMessage("(leave MASK empty if not used)");
+            gd.addNumericField("STEP",  Prefs.get("com.braincadet.ndist.step", 0f), 2, 10, "");
+            gd.addMessage("(STEP>0 resamples both reconstructions to that arc-length step before the comparison)");
+            gd.addNumericField("EPS",   Prefs.get("com.braincadet.ndist.eps", 0f), 2, 10, "");
+            gd.addMessage("(EPS>0 approximate KDTREE search, distances are at most (1+EPS) times the exact ones)");
+            gd.addChoice("SEARCH",      NdistCalculator.SEARCH, Prefs.get("com.braincadet.ndist.search", NdistCalculator.SEARCH[NdistCalculator.KDTREE]));
+            gd.addNumericField("SCALE", Prefs.get("com.braincadet.ndist.scale", 0f), 2, 10, "");
+            gd.addMessage("(SCALE: QUANT grid steps per unit, e.g. 10 for a 0.1 grid, 0 detects power of two grids only)");
+            gd.addCheckbox("CACHE",     Prefs.get("com.braincadet.ndist.cache", false));
+            gd.addMessage("(CACHE keeps the parsed swc as .swcb next to it, reused until the swc changes)");
+            gd.addCheckbox("TILED",     Prefs.get("com.braincadet.ndist.tiled", false));
+            gd.addMessage("(TILED compares through temporary files with bounded memory, for very large swc, MASK is not used)");
+            gd.addCheckbox("BREAKDOWN", Prefs.get("com.braincadet.ndist.breakdown", false));
+            gd.addMessage("(BREAKDOWN writes the distances per branch, component and type at the largest S to breakdown.csv)");
             gd.showDialog();
             if (gd.wasCanceled()) return;
             swca	= gd.getNextString();       Prefs.set("com.braincadet.ndist.swca", swca);
             swcb	= gd.getNextString();       Prefs.set("com.braincadet.ndist.swcb", swcb);
             dst = (float) gd.getNextNumber();   Prefs.set("com.braincadet.ndist.dst", dst);
+            sstart = (float) gd.getNextNumber();Prefs.set("com.braincadet.ndist.sstart", sstart);
+            sstep = (float) gd.getNextNumber(); Prefs.set("com.braincadet.ndist.sstep", sstep);
+            slist = gd.getNextString();         Prefs.set("com.braincadet.ndist.slist", slist);
             maskpath = gd.getNextString();      Prefs.set("com.braincadet.ndist.mask", maskpath);
+            step = (float) gd.getNextNumber();  Prefs.set("com.braincadet.ndist.step", step);
+            eps = (float) gd.getNextNumber();   Prefs.set("com.braincadet.ndist.eps", eps);
+            search = gd.getNextChoice();        Prefs.set("com.braincadet.ndist.search", search);
+            scale = (float) gd.getNextNumber(); Prefs.set("com.braincadet.ndist.scale", scale);
+            cache = gd.getNextBoolean();        Prefs.set("com.braincadet.ndist.cache", cache);
+            tiled = gd.getNextBoolean();        Prefs.set("com.braincadet.ndist.tiled", tiled);
+            breakdown = gd.getNextBoolean();    Prefs.set("com.braincadet.ndist.breakdown", breakdown);
         }
         else {
             swca    = Macro.getValue(Macro.getOptions(), "swca",    "");
             swcb    = Macro.getValue(Macro.getOptions(), "swcb", 	"");
             dst     = Float.valueOf(Macro.getValue(Macro.getOptions(), "dst", 	Float.toString(2)));
+            dst     = Float.valueOf(Macro.getValue(Macro.getOptions(), "send",  Float.toString(dst)));
+            sstart  = Float.valueOf(Macro.getValue(Macro.getOptions(), "sstart", Float.toString(.5f)));
+            sstep   = Float.valueOf(Macro.getValue(Macro.getOptions(), "sstep", Float.toString(.5f)));
+            slist   = Macro.getValue(Macro.getOptions(), "slist",   "");
             maskpath= Macro.getValue(Macro.getOptions(), "mask",    "");
+            search  = Macro.getValue(Macro.getOptions(), "search",  NdistCalculator.SEARCH[NdistCalculator.KDTREE]);
+            cache   = Boolean.valueOf(Macro.getValue(Macro.getOptions(), "cache", "false"));
+            tiled   = Boolean.valueOf(Macro.getValue(Macro.getOptions(), "tiled", "false"));
+            step    = Float.valueOf(Macro.getValue(Macro.getOptions(), "step", Float.toString(0)));
+            eps     = Float.valueOf(Macro.getValue(Macro.getOptions(), "eps", Float.toString(0)));
+            scale   = Float.valueOf(Macro.getValue(Macro.getOptions(), "scale", Float.toString(0)));
+            breakdown = Boolean.valueOf(Macro.getValue(Macro.getOptions(), "breakdown", "false"));
         }
 
-        ReadSWC swcA = new ReadSWC(swca, false);
-        ReadSWC swcB = new ReadSWC(swcb, false);
+        // reconstructions (and their search structures) are kept between the calls, see SwcCache
+        // (tiled comparison reads the files itself)
+        ReadSWC swcA = (tiled)? null : SwcCache.get(swca, false, cache);
+        ReadSWC swcB = (tiled)? null : SwcCache.get(swcb, false, cache);
 
         ImagePlus mask = (maskpath.equals(""))?null:new ImagePlus(new File(maskpath).getAbsolutePath());
 
@@ -103,11 +166,11 @@ public class SpatDist implements PlugIn {
 //            IJ.log("exported: " + swclog);
 //        }
 
-        if (swcA.nnodes.size()==0) {
+        if (!tiled && swcA.nnodes.size()==0) {
             IJ.log("Empty SWC:"+swca);
             return;
         }
-        if (swcB.nnodes.size()==0) {
+        if (!tiled && swcB.nnodes.size()==0) {
             IJ.log("Empty SWC:"+swcb);
             return;
         }
@@ -135,20 +198,48 @@ public class SpatDist implements PlugIn {
 
         // version 2
         t1 = System.currentTimeMillis();
-        float[][] meas1 = swcA.spatdist1(swcB, dst, mask);
+        float[] sval = (slist.trim().isEmpty())? parseSweep(sstart, sstep, dst) : parseList(slist);
+        if (sval.length==0) {
+            IJ.log("No S thresholds to evaluate.");
+            return;
+        }
+
+        float[][] meas1;
+        String[] brows = new String[0]; // breakdown rows
+        float bound = (!tiled && searchMode(search)==NdistCalculator.KDTREE)? Math.max(eps, 0) : 0; // eps is used by KDTREE only
+        warnScale(scale, searchMode(search), tiled);
+        if (tiled) {
+            if (mask!=null) IJ.log("warning: MASK is not used with the tiled comparison");
+            if (step>0)     IJ.log("warning: STEP is not used with the tiled comparison");
+            if (breakdown)  IJ.log("warning: BREAKDOWN is not available with the tiled comparison");
+            warnTiledSearch(searchMode(search));
+            try {
+                meas1 = TiledDist.compare(swca, swcb, sval);
+            }
+            catch (IOException e) {
+                IJ.log("error: " + e.getMessage());
+                return;
+            }
+            if (meas1.length==0) return; // empty swc
+        }
+        else {
+            NdistCalculator calc = swcA.distances(swcB, mask, searchMode(search), step, bound, Math.max(scale, 0));
+            meas1 = calc.compute(sval);
+            if (breakdown) brows = breakdownLines(atag, "NA", calc, swcA, swcB, sval[sval.length-1]);
+        }
         t2 = System.currentTimeMillis();
 //        IJ.log("spatdist1 done. " + IJ.d2s((t2-t1)/1000f,2)+" sec.");
 
-        String legend1 = String.format("%15s,%s,%10s,%10s,%10s,%10s,%10s,%10s,%10s,%10s,%10s,%10s", "NAME", "TAG", "SD", "S", "SSD", "percSSD", "P", "R", "F", "PC", "RC", "FC");
+        String legend1 = legend(bound);
         String[] eval1 = new String[meas1.length];
         for (int i = 0; i < meas1.length; i++)
-            eval1[i] = String.format("%15s,%s,%10.3f,%2.1f,%10.3f,%10.3f,%10.3f,%10.3f,%10.3f,%10.3f,%10.3f,%10.3f", atag, "NA", meas1[i][0], meas1[i][1], meas1[i][2], meas1[i][3], meas1[i][4], meas1[i][5], meas1[i][6], meas1[i][7], meas1[i][8], meas1[i][9]);
+            eval1[i] = evalLine(atag, "NA", meas1[i], bound);
 
         IJ.log(legend1);
         for (int i = 0; i < meas1.length; i++) IJ.log(eval1[i]);
 
         // append to the evaluation file
-        String  outf = new File(swca).getParent() + File.separator + "eval.csv"; // output (file append) will be stored in the same folder as the chosen swc file
+        String  outf = new File(swca).getParent() + File.separator + ((bound>0)? "eval_eps.csv" : "eval.csv"); // output (file append) will be stored in the same folder as the chosen swc file
 
         File f = new File(outf);
         if (!f.exists()) { // first line
@@ -166,9 +257,95 @@ public class SpatDist implements PlugIn {
             logWriter.close();
         } catch (IOException e) {}
 
+        if (brows.length>0) {
+            String boutf = new File(swca).getParent() + File.separator + "breakdown.csv";
+            try {
+                boolean first = !new File(boutf).exists();
+                PrintWriter logWriter = new PrintWriter(new BufferedWriter(new FileWriter(boutf, true)));
+                if (first) logWriter.println(DistanceBreakdown.legend());
+                for (String line : brows) logWriter.println(line);
+                logWriter.close();
+                IJ.log(boutf);
+            } catch (IOException e) {
+                IJ.log("error: could not write " + boutf + " (" + e.getMessage() + ")");
+            }
+        }
+
+    }
+
+    // breakdown of both sides at the threshold s: A->B over the nodes of A (side A), B->A over the nodes of B (side B)
+    static String[] breakdownLines(String name, String tag, NdistCalculator calc, ReadSWC swcA, ReadSWC swcB, float s) {
+        String[] a = new DistanceBreakdown(calc.dAB, calc.nlistA, swcA, s).lines(name, tag, "A");
+        String[] b = new DistanceBreakdown(calc.dBA, calc.nlistB, swcB, s).lines(name, tag, "B");
+        String[] out = Arrays.copyOf(a, a.length+b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    // columns of evalLine(), EPS only for the approximate search (eps>0)
+    static String legend(float eps) {
+        String legend = String.format("%15s,%s,%10s,%10s,%10s,%10s,%10s,%10s,%10s,%10s,%10s,%10s", "NAME", "TAG", "SD", "S", "SSD", "percSSD", "P", "R", "F", "PC", "RC", "FC");
+        return (eps>0)? legend + String.format(",%10s", "EPS") : legend;
+    }
+
+    // scale is only used by the QUANT search
+    static void warnScale(float scale, int searchMode, boolean tiled) {
+        if (scale>0 && (tiled || searchMode!=NdistCalculator.QUANT))
+            IJ.log("warning: SCALE is only used with SEARCH=QUANT (not tiled)");
+    }
+
+    // TiledDist only computes exact node to node distances (as KDTREE, GRID and BRUTE)
+    static void warnTiledSearch(int searchMode) {
+        if (searchMode==NdistCalculator.SEGMENT || searchMode==NdistCalculator.QUANT)
+            IJ.log("warning: SEARCH=" + NdistCalculator.SEARCH[searchMode] + " is not available with the tiled comparison, node to node distances are computed");
+    }
+
+    // one row of NdistCalculator.compute() output, eps: relative error bound of the distances (0 if exact, no EPS column),
+    // it bounds SD by the factor (1+eps) and the threshold measures by the exact ones at S/(1+eps) and S
+    static String evalLine(String name, String tag, float[] m, float eps) {
+        String line = String.format("%15s,%s,%10.3f,%.3f,%10.3f,%10.3f,%10.3f,%10.3f,%10.3f,%10.3f,%10.3f,%10.3f", name, tag, m[0], m[1], m[2], m[3], m[4], m[5], m[6], m[7], m[8], m[9]);
+        return (eps>0)? line + String.format(",%10.3f", eps) : line;
+    }
+
+    // regular sweep sstart, sstart+sstep, ... send, non-positive sstart or sstep are rejected (empty)
+    static float[] parseSweep(float sstart, float sstep, float send) {
+        if (!(sstart>0)) {
+            IJ.log("warning: S_START=" + sstart + " rejected, needs to be positive");
+            return new float[0];
+        }
+        if (!(sstep>0)) {
+            IJ.log("warning: S_STEP=" + sstep + " rejected, needs to be positive");
+            return new float[0];
+        }
+        return NdistCalculator.sweep(sstart, sstep, send);
+    }
+
+    // ascending positive thresholds from the comma (or space) separated list
+    static float[] parseList(String slist) {
+        TreeSet<Float> vals = new TreeSet<Float>();
+        for (String v : slist.trim().split("[,\\s]+")) {
+            try {
+                float f = Float.valueOf(v);
+                if (f>0) vals.add(f);
+                else IJ.log("warning: S=" + v + " skipped, needs to be positive");
+            }
+            catch (NumberFormatException e) {
+                IJ.log("warning: S=" + v + " is not a number");
+            }
+        }
+        float[] out = new float[vals.size()];
+        int i = 0;
+        for (Float f : vals) out[i++] = f;
+        return out;
+    }
+
+    static int searchMode(String search) {
+        for (int i = 0; i < NdistCalculator.SEARCH.length; i++)
+            if (NdistCalculator.SEARCH[i].equalsIgnoreCase(search.trim())) return i;
+        return NdistCalculator.KDTREE;
     }
 
-    private static String getFileName(String file_path) {
+    static String getFileName(String file_path) {
         String name = "";
 
         int i = file_path.lastIndexOf('.');
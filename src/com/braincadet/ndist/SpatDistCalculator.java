@@ -3,26 +3,29 @@ package com.braincadet.ndist;
 import ij.IJ;
 import ij.ImagePlus;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
 
-public class SpatDistCalculator extends Thread {
+/**
+ * single pass spatial distance between two node lists, A->B minimums are kept per row and B->A ones are updated on the way
+ * one instance per comparison (own lists and buffers), rows of A are split into fork/join tasks (SpatDistTask),
+ * each worker thread keeps one array of B->A minimums for all the rows it runs, the arrays are merged once at the end
+ * (no shared writes, no locking), extra memory is one |B| float array per pool thread that ran rows (O(P*|B|))
+ */
+public class SpatDistCalculator {
 
-    private int begN, endN;
-    private static boolean swtch = false; // assume second argument is gold-standard (nlistB used for the recall)
+    private boolean swtch = false; // assume second argument is gold-standard (nlistB used for the recall)
 
-    public static ArrayList<Node> nlistA = new ArrayList<Node>();
-    public static ArrayList<Node> nlistB = new ArrayList<Node>();
+    public NodeTable nlistA;
+    public NodeTable nlistB;
 
-    public static float[] dAB;          // this one will be filled in threaded run
-    public static float[] dBA;          // this one is appended simultaneously
+    public float[] dAB;          // this one will be filled in threaded run
+    public float[] dBA;          // this one is merged from the per-worker minimums
 
-    public SpatDistCalculator (int n0, int n1) {
-        this.begN = n0;
-        this.endN = n1;
-    }
+    private ConcurrentHashMap<Thread, float[]> parts; // worker thread -> its B->A minimums (during run())
 
-    public static void load(ArrayList<Node> nlist1, ArrayList<Node> nlist2, ImagePlus mask) {
+    public SpatDistCalculator(NodeTable nlist1, NodeTable nlist2, ImagePlus mask) {
 
         // version of load() method that works with the mask (add nodes where uint8 mask was zero)
 
@@ -47,99 +50,25 @@ public class SpatDistCalculator extends Thread {
 //            swclogWriter.println("");
 //        } catch (IOException e) {}
 
-        nlistA.clear();
-        for (int i = 0; i <nlist1.size(); i++) { // check node coordinates, add if it is within the image boundaries and soma mask==0
-            if (nlist1.get(i)!=null) {
-                int x = Math.round(nlist1.get(i).x);
-                int y = Math.round(nlist1.get(i).y);
-                int z = Math.round(nlist1.get(i).z);
-                if (x>=0 && x<mask.getWidth() && y>=0 && y<mask.getHeight() && z>=0 && z<mask.getStackSize() && stackarr[z][y*mask.getWidth()+x]==(byte)0) {
-                    nlistA.add(nlist1.get(i));
-//                    swclogWriter.println(String.format("%d %d %f %f %f %f %d", (swclogC++), 3, nlist1.get(i).x, nlist1.get(i).y, nlist1.get(i).z, nlist1.get(i).r, -1));
-                }
-            }
-        }
-
-//        swclogWriter.close();
-//        IJ.log("exported:" + swclog);
-
-//        swclog = System.getProperty("user.home")+File.separator+"nlistB.swc";
-//        swclogC = 1;
-//        swclogWriter = null;
-
-//        try {
-//            swclogWriter = new PrintWriter(swclog);
-//            swclogWriter.print("");
-//            swclogWriter.close();
-//        } catch (FileNotFoundException ex) {}
-
-//        try {
-//            swclogWriter = new PrintWriter(new BufferedWriter(new FileWriter(swclog, true)));
-//            swclogWriter.println("");
-//        } catch (IOException e) {}
-
-        nlistB.clear();
-        for (int i = 0; i < nlist2.size(); i++) { // check node coordinates, add if it is within the image boundaries and soma mask==0
-            if (nlist2.get(i)!=null) {
-                int x = Math.round(nlist2.get(i).x);
-                int y = Math.round(nlist2.get(i).y);
-                int z = Math.round(nlist2.get(i).z);
-                if (x>=0 && x<mask.getWidth() && y>=0 && y<mask.getHeight() && z>=0 && z< mask.getStackSize() && stackarr[z][y*mask.getWidth()+x]==(byte)0) {
-                    nlistB.add(nlist2.get(i));
-//                    swclogWriter.println(String.format("%d %d %f %f %f %f %d", (swclogC++), 3, nlist2.get(i).x, nlist2.get(i).y, nlist2.get(i).z, nlist2.get(i).r, -1));
-                }
-            }
-        }
-
-//        swclogWriter.close();
-//        IJ.log("exported:" + swclog);
-
-        if (nlistA.size()==0 || nlistB.size()==0) {
-            IJ.log("error: empty swc file!");
-            return;
-        }
-
-        if (nlistB.size()>nlistA.size()) {
-            ArrayList<Node> temp = nlistA;
-            nlistA = nlistB;
-            nlistB = temp;
-
-            swtch = true; // (nlistA used for the recall)
-        }
-
-        // initialize the matrix with distances and outputs
-        dAB = new float[nlistA.size()];
-        Arrays.fill(dAB, Float.POSITIVE_INFINITY);
-        dBA = new float[nlistB.size()]; // will be calculated in a separate method
-        Arrays.fill(dBA, Float.POSITIVE_INFINITY);
+        load(nlist1.subset(NdistCalculator.inmask(nlist1, mask, stackarr)), nlist2.subset(NdistCalculator.inmask(nlist2, mask, stackarr)));
 
     }
 
-    public static void load(ArrayList<Node> nlist1, ArrayList<Node> nlist2) {
-
-        nlistA.clear();
-
-        for (int i = 0; i <nlist1.size(); i++) {
-            if (nlist1.get(i)!=null) {
-                nlistA.add(nlist1.get(i));
-            }
-        }
+    public SpatDistCalculator(NodeTable nlist1, NodeTable nlist2) {
+        load(nlist1, nlist2);
+    }
 
-        nlistB.clear();
+    private void load(NodeTable nlist1, NodeTable nlist2) {
 
-        for (int i = 0; i < nlist2.size(); i++) {
-            if (nlist2.get(i)!=null) {
-                nlistB.add(nlist2.get(i));
-            }
-        }
+        nlistA = nlist1;
+        nlistB = nlist2;
 
-        if (nlistA.size()==0 || nlistB.size()==0) {
+        if (nlistA.n==0 || nlistB.n==0) {
             IJ.log("error: empty swc file!");
-            return;
         }
 
-        if (nlistB.size()>nlistA.size()) {
-            ArrayList<Node> temp = nlistA;
+        if (nlistB.n>nlistA.n) {
+            NodeTable temp = nlistA;
             nlistA = nlistB;
             nlistB = temp;
 
@@ -147,42 +76,58 @@ public class SpatDistCalculator extends Thread {
         }
 
         // initialize the matrix with distances and outputs
-        dAB = new float[nlistA.size()];
+        dAB = new float[nlistA.n];
         Arrays.fill(dAB, Float.POSITIVE_INFINITY);
-        dBA = new float[nlistB.size()]; // will be calculated in a separate method
+        dBA = new float[nlistB.n]; // will be calculated in a separate method
         Arrays.fill(dBA, Float.POSITIVE_INFINITY);
 
     }
 
     public void run() {
+        int P = NdistCalculator.getPool().getParallelism();
+        int chunk = Math.max(NdistCalculator.MIN_CHUNK, nlistA.n / (8*P)); // the tasks share the per-worker minimums, so they can be small
+        parts = new ConcurrentHashMap<Thread, float[]>();
+        NdistCalculator.getPool().invoke(new SpatDistTask(this, 0, nlistA.n, chunk));
+        for (float[] part : parts.values()) merge(dBA, part);
+        parts = null;
+    }
+
+    /**
+     * fill dAB[begN..endN) and lower the B->A minimums of the calling worker with those rows
+     */
+    void run(int begN, int endN) {
         // what will be calculated in parallel are the distances and the closest from A->B
         // distances are kept so that B->A can be calculated as well
+        float[] xA = nlistA.x, yA = nlistA.y, zA = nlistA.z;
+        float[] xB = nlistB.x, yB = nlistB.y, zB = nlistB.z;
+        int nB = nlistB.n;
+        float[] dBApart = parts.get(Thread.currentThread());
+        if (dBApart==null) {
+            dBApart = new float[nB];
+            Arrays.fill(dBApart, Float.POSITIVE_INFINITY);
+            parts.put(Thread.currentThread(), dBApart); // only this thread writes its own entry
+        }
         for (int locA=begN; locA<endN; locA++) { // threading works per nodes in neuron A
             // calculate differences for point in A towards all the points in B
             float curr_min = Float.POSITIVE_INFINITY; // reset upon every row
-            for (int locB = 0; locB < nlistB.size(); locB++) {
-                float dx = nlistA.get(locA).x - nlistB.get(locB).x;
-                float dy = nlistA.get(locA).y - nlistB.get(locB).y;
-                float dz = nlistA.get(locA).z - nlistB.get(locB).z;
+            for (int locB = 0; locB < nB; locB++) {
+                float dx = xA[locA] - xB[locB];
+                float dy = yA[locA] - yB[locB];
+                float dz = zA[locA] - zB[locB];
                 float d2 = dx*dx + dy*dy + dz*dz; // (float) Math.sqrt( Math.pow(dx,2) + Math.pow(dy,2) + Math.pow(dz,2) );
                 if (d2<curr_min) curr_min = d2;
-//                IJ.log( " A["+locA+"]="+nlistA.get(locA).x+","+nlistA.get(locA).y+","+nlistA.get(locA).z+
-//                        " B["+locB+"]="+nlistB.get(locB).x+","+nlistB.get(locB).y+","+nlistA.get(locB).z+
-//                        " D="+Math.sqrt(d2)+
-//                                "dx="+dx
-//                );
-                dBA_store(d2,locB);
+                if (d2<dBApart[locB]) dBApart[locB] = d2;
             }
             dAB[locA] = curr_min;
         }
     }
 
-    private static synchronized void dBA_store(float val, int idx) {
-        if (val<dBA[idx])
-            dBA[idx] = val;
+    static void merge(float[] into, float[] from) {
+        for (int i = 0; i < into.length; i++)
+            if (from[i]<into[i]) into[i] = from[i];
     }
 
-    public static float[] spatdist(float dst){ // directed divergence
+    public float[] spatdist(float dst){ // directed divergence
 
         float d;
 
@@ -282,3 +227,31 @@ public class SpatDistCalculator extends Thread {
     }
 
 }
+
+class SpatDistTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private SpatDistCalculator calc;
+    private int begN, endN, chunk;
+
+    public SpatDistTask(SpatDistCalculator calc, int n0, int n1, int chunk) {
+        this.calc = calc;
+        this.begN = n0;
+        this.endN = n1;
+        this.chunk = chunk;
+    }
+
+    protected void compute() {
+
+        if (endN-begN<=chunk) {
+            calc.run(begN, endN);
+            return;
+        }
+
+        int mid = (begN+endN)>>>1;
+        invokeAll(new SpatDistTask(calc, begN, mid, chunk), new SpatDistTask(calc, mid, endN, chunk));
+
+    }
+
+}
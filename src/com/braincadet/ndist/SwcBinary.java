@@ -0,0 +1,378 @@
+package com.braincadet.ndist;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * binary cache of the parsed reconstruction (.swcb file next to the .swc), a fast binary reload: the arrays are read
+ * sequentially into the heap (no text parsing, id resolution or link deduplication), ReadSWC still rebuilds nnodes from them
+ * layout (little-endian):
+ * int magic, int version, long source size, long source mtime, int path length, path bytes (utf-8)
+ * int maxID, float minR maxR minX maxX minY maxY minZ maxZ, int n, int nedges,
+ * float x[n] y[n] z[n] r[n], byte type[n], int id[n] (swc ids), int nbr0[n+1], int nbr[nedges] (NodeTable)
+ * int hastree, if 1: float x[n] y[n] z[n], byte axis[n] (KdTree arrays, read only when requested)
+ * cache is stale (and read() returns null) if the source path, size or modification time differ,
+ * a damaged cache (sizes that do not fit the file, links out of range) is not read either, so it gets rebuilt
+ */
+public class SwcBinary {
+
+    public static int MAGIC     = 0x42435753;   // "SWCB"
+    public static int VERSION   = 2;            // 2: neighbours in ascending order (NodeTable.fromLinks)
+
+    public NodeTable    table;
+    public int[]        ids;        // table index -> swc id
+    public int          maxID;
+
+    public float minR, maxR, minX, maxX, minY, maxY, minZ, maxZ;
+
+    private File    file;           // kept for the lazy k-d tree
+    private long    length;         // cache file size when it was read
+    private long    treePos = -1;   // position of the tree arrays, -1 if there are none
+
+    private static Charset UTF8 = Charset.forName("UTF-8");
+
+    private static int BUFFER_SIZE = 1<<16;
+    private static int MAX_PATH = 1<<16; // bytes
+
+    /**
+     * path of the cache that belongs to the swc file (extension replaced with .swcb)
+     */
+    public static String cachePath(String swcpath) {
+        int i = swcpath.lastIndexOf('.');
+        return ((i>swcpath.lastIndexOf(File.separatorChar))? swcpath.substring(0, i) : swcpath) + ".swcb";
+    }
+
+    /**
+     * read the cache of the swc file, null if it does not exist, is stale, damaged or can not be read
+     */
+    public static SwcBinary read(String swcpath) {
+
+        File src = new File(swcpath);
+        File bin = new File(cachePath(swcpath));
+
+        if (!src.exists() || !bin.exists()) return null;
+
+        try {
+
+            RandomAccessFile raf = new RandomAccessFile(bin, "r");
+
+            try {
+
+                In in = new In(raf.getChannel(), 0);
+
+                if (in.getInt()!=MAGIC || in.getInt()!=VERSION) return null;
+                if (in.getLong()!=src.length() || in.getLong()!=src.lastModified()) return null;
+                int plen = in.getInt();
+                if (plen<0 || plen>MAX_PATH || plen>in.remaining()) return null;
+                byte[] path = new byte[plen];
+                in.get(path);
+                if (!new String(path, UTF8).equals(src.getAbsolutePath())) return null;
+
+                SwcBinary b = new SwcBinary();
+
+                b.maxID = in.getInt();
+                b.minR = in.getFloat(); b.maxR = in.getFloat();
+                b.minX = in.getFloat(); b.maxX = in.getFloat();
+                b.minY = in.getFloat(); b.maxY = in.getFloat();
+                b.minZ = in.getFloat(); b.maxZ = in.getFloat();
+
+                int n = in.getInt();
+                int nedges = in.getInt();
+
+                // every size is checked against the bytes that are left before anything is allocated
+                if (n<0 || nedges<0 || n==Integer.MAX_VALUE) return null;
+                if (21L*n + 4L*(n+1) + 4L*nedges + 4 > in.remaining()) return null;
+
+                NodeTable t = new NodeTable(n, nedges);
+                in.get(t.x);
+                in.get(t.y);
+                in.get(t.z);
+                in.get(t.r);
+                in.get(t.type);
+                b.ids = new int[n];
+                in.get(b.ids);
+                in.get(t.nbr0);
+                in.get(t.nbr);
+                for (int i = 0; i < n; i++) t.id[i] = i;
+
+                // rows and links have to be consistent, the table is indexed with them
+                if (t.nbr0[0]!=0 || t.nbr0[n]!=nedges) return null;
+                for (int i = 0; i < n; i++) if (t.nbr0[i+1]<t.nbr0[i]) return null;
+                for (int j = 0; j < nedges; j++) if (t.nbr[j]<0 || t.nbr[j]>=n) return null;
+
+                b.table = t;
+
+                if (in.getInt()==1 && 13L*n<=in.remaining()) {
+                    b.file = bin;
+                    b.length = raf.length();
+                    b.treePos = in.position();
+                }
+
+                return b;
+
+            }
+            finally {
+                raf.close();
+            }
+
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (RuntimeException e) {
+            return null; // damaged, rebuilt by the caller
+        }
+
+    }
+
+    /**
+     * k-d tree stored with the table, null if the cache was written without it or can not be read any more
+     */
+    public KdTree kdtree() {
+
+        if (treePos<0) return null;
+
+        try {
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+            try {
+
+                if (raf.length()!=length) return null; // rewritten meanwhile
+
+                In in = new In(raf.getChannel(), treePos);
+
+                int n = table.n;
+                float[] x = new float[n], y = new float[n], z = new float[n];
+                byte[] axis = new byte[n];
+                in.get(x);
+                in.get(y);
+                in.get(z);
+                in.get(axis);
+
+                return new KdTree(x, y, z, axis);
+
+            }
+            finally {
+                raf.close();
+            }
+
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+
+    }
+
+    /**
+     * sequential little-endian reader over the file channel through one buffer,
+     * so files of any size are read (no 2 GB mapping limit), reading past the end throws EOFException
+     */
+    private static class In {
+
+        private FileChannel ch;
+        private long        pos;    // file position of the buffer end
+        private long        size;
+        private ByteBuffer  buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        In(FileChannel ch, long pos) throws IOException {
+            this.ch = ch;
+            this.pos = pos;
+            size = ch.size();
+            buf.limit(0);
+        }
+
+        long position() {
+            return pos - buf.remaining();
+        }
+
+        long remaining() {
+            return size - position();
+        }
+
+        // at least k (<= BUFFER_SIZE) bytes in the buffer
+        private void need(int k) throws IOException {
+            if (buf.remaining()>=k) return;
+            buf.compact();
+            while (buf.position()<k) {
+                int cnt = ch.read(buf, pos);
+                if (cnt<0) throw new EOFException();
+                pos += cnt;
+            }
+            buf.flip();
+        }
+
+        int getInt() throws IOException {
+            need(4);
+            return buf.getInt();
+        }
+
+        long getLong() throws IOException {
+            need(8);
+            return buf.getLong();
+        }
+
+        float getFloat() throws IOException {
+            need(4);
+            return buf.getFloat();
+        }
+
+        void get(byte[] a) throws IOException {
+            for (int i = 0; i < a.length; ) {
+                need(Math.min(BUFFER_SIZE, a.length-i));
+                int k = Math.min(buf.remaining(), a.length-i);
+                buf.get(a, i, k);
+                i += k;
+            }
+        }
+
+        void get(float[] a) throws IOException {
+            for (int i = 0; i < a.length; ) {
+                need((int) Math.min(BUFFER_SIZE, 4L*(a.length-i)));
+                int k = Math.min(buf.remaining()/4, a.length-i);
+                buf.asFloatBuffer().get(a, i, k);
+                buf.position(buf.position() + 4*k);
+                i += k;
+            }
+        }
+
+        void get(int[] a) throws IOException {
+            for (int i = 0; i < a.length; ) {
+                need((int) Math.min(BUFFER_SIZE, 4L*(a.length-i)));
+                int k = Math.min(buf.remaining()/4, a.length-i);
+                buf.asIntBuffer().get(a, i, k);
+                buf.position(buf.position() + 4*k);
+                i += k;
+            }
+        }
+
+    }
+
+    /**
+     * write the cache of the reconstruction read from swcpath (with its k-d tree),
+     * written to a temporary file first and renamed, so that concurrent readers never see a partial file
+     */
+    public static void write(String swcpath, ReadSWC swc) throws IOException {
+
+        File src = new File(swcpath);
+        File bin = new File(cachePath(swcpath));
+        File tmp = File.createTempFile(bin.getName(), ".tmp", bin.getAbsoluteFile().getParentFile());
+
+        try {
+
+            write(tmp, src, swc);
+
+            try {
+                Files.move(tmp.toPath(), bin.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e) {
+                Files.move(tmp.toPath(), bin.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        }
+        catch (IOException | RuntimeException e) {
+            if (!tmp.delete()) tmp.deleteOnExit(); // no partial .tmp is left next to the swc
+            throw e;
+        }
+
+    }
+
+    // cache content into the (temporary) file tmp
+    private static void write(File tmp, File src, ReadSWC swc) throws IOException {
+
+        NodeTable t = swc.ntable;
+        KdTree tree = swc.kdtree();
+        byte[] path = src.getAbsolutePath().getBytes(UTF8);
+
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+
+        try {
+
+            raf.setLength(0);
+            FileChannel ch = raf.getChannel();
+            ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            out.putInt(MAGIC).putInt(VERSION).putLong(src.length()).putLong(src.lastModified());
+            out.putInt(path.length);
+            put(ch, out, path, path.length);
+
+            need(ch, out, 48);
+            out.putInt(swc.maxID);
+            out.putFloat(swc.minR).putFloat(swc.maxR);
+            out.putFloat(swc.minX).putFloat(swc.maxX);
+            out.putFloat(swc.minY).putFloat(swc.maxY);
+            out.putFloat(swc.minZ).putFloat(swc.maxZ);
+            out.putInt(t.n).putInt(t.nbr0[t.n]);
+
+            put(ch, out, t.x, t.n);
+            put(ch, out, t.y, t.n);
+            put(ch, out, t.z, t.n);
+            put(ch, out, t.r, t.n);
+            put(ch, out, t.type, t.n);
+            for (int i = 0; i < t.n; i++) {
+                need(ch, out, 4);
+                out.putInt(swc.ids[t.id[i]]);
+            }
+            put(ch, out, t.nbr0, t.n+1);
+            put(ch, out, t.nbr, t.nbr0[t.n]);
+
+            need(ch, out, 4);
+            out.putInt(1);
+            put(ch, out, tree.x, t.n);
+            put(ch, out, tree.y, t.n);
+            put(ch, out, tree.z, t.n);
+            put(ch, out, tree.axis, t.n);
+
+            flush(ch, out);
+
+        }
+        finally {
+            raf.close();
+        }
+
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) ch.write(out);
+        out.clear();
+    }
+
+    private static void need(FileChannel ch, ByteBuffer out, int k) throws IOException {
+        if (out.remaining()<k) flush(ch, out);
+    }
+
+    private static void put(FileChannel ch, ByteBuffer out, float[] a, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            need(ch, out, 4);
+            out.putFloat(a[i]);
+        }
+    }
+
+    private static void put(FileChannel ch, ByteBuffer out, int[] a, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            need(ch, out, 4);
+            out.putInt(a[i]);
+        }
+    }
+
+    private static void put(FileChannel ch, ByteBuffer out, byte[] a, int n) throws IOException {
+        for (int i = 0; i < n; i += BUFFER_SIZE) {
+            int k = Math.min(BUFFER_SIZE, n-i);
+            need(ch, out, k);
+            out.put(a, i, k);
+        }
+    }
+
+}
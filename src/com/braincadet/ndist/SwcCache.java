@@ -0,0 +1,209 @@
+package com.braincadet.ndist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * JVM-wide cache of the loaded reconstructions (ReadSWC with its k-d tree and grid, built on first use)
+ * entries are keyed by the canonical path and checked against the file size and modification time,
+ * least recently used ones are evicted once the estimated heap footprint exceeds the budget
+ * (the reconstruction used last always stays, even if it alone is over the budget)
+ */
+public class SwcCache {
+
+    private static long budget = Runtime.getRuntime().maxMemory()/8; // bytes
+
+    private static LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // access order
+    private static long used = 0;
+
+    private static HashMap<String, Load> loading = new HashMap<String, Load>(); // loads in flight
+
+    private static class Load {
+        boolean             trees;  // loaded with doTree
+        FutureTask<ReadSWC> task;
+    }
+
+    private static class Entry {
+        long    length;
+        long    mtime;
+        long    bytes;
+        boolean trees;  // loaded with doTree
+        ReadSWC swc;
+    }
+
+    public static synchronized void setBudget(long bytes) {
+        budget = bytes;
+        evict();
+    }
+
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    public static synchronized void clear() {
+        entries.clear();
+        used = 0;
+    }
+
+    public static synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * reconstruction read from swcpath, loaded on the first request and after the file has changed,
+     * concurrent requests of the same file wait for the one load in flight (the file is parsed and indexed once)
+     * @param doTree trees are extracted (entries loaded without them are reloaded)
+     * @param binary read through the .swcb binary cache (ReadSWC.load())
+     */
+    public static ReadSWC get(String swcpath, final boolean doTree, final boolean binary) {
+
+        File f = new File(swcpath);
+        String key;
+        try {
+            key = f.getCanonicalPath();
+        }
+        catch (IOException e) {
+            key = f.getAbsolutePath();
+        }
+
+        final String path = key;
+        final long length = f.length(), mtime = f.lastModified();
+
+        while (true) {
+
+            Load ld;
+            boolean mine = false;
+
+            synchronized (SwcCache.class) {
+
+                Entry e = entries.get(key);
+                if (e!=null && e.length==length && e.mtime==mtime && (!doTree || e.trees)) {
+                    evict(); // recounts the structures built since the last request
+                    return e.swc;
+                }
+
+                ld = loading.get(key);
+                if (ld==null) {
+                    ld = new Load();
+                    ld.trees = doTree;
+                    ld.task = new FutureTask<ReadSWC>(new Callable<ReadSWC>() {
+                        public ReadSWC call() {
+                            return load(path, length, mtime, doTree, binary);
+                        }
+                    });
+                    loading.put(key, ld);
+                    mine = true;
+                }
+
+            }
+
+            // load outside the lock, other files can be loaded meanwhile
+            if (mine) {
+                try {
+                    ld.task.run();
+                }
+                finally {
+                    synchronized (SwcCache.class) {
+                        loading.remove(key);
+                    }
+                }
+            }
+
+            ReadSWC swc = await(ld.task);
+            if (!doTree || ld.trees) return swc;
+            // the load that was in flight did not extract the trees, request again
+
+        }
+
+    }
+
+    // read the file and keep it (loading holds the key meanwhile)
+    private static ReadSWC load(String key, long length, long mtime, boolean doTree, boolean binary) {
+
+        ReadSWC swc = (binary)? ReadSWC.load(key, doTree) : new ReadSWC(key, doTree);
+
+        if (swc.ntable.n==0) return swc; // missing or empty file, nothing to keep
+
+        Entry e = new Entry();
+        e.length    = length;
+        e.mtime     = mtime;
+        e.bytes     = footprint(swc);
+        e.trees     = doTree;
+        e.swc       = swc;
+
+        synchronized (SwcCache.class) {
+            Entry old = entries.put(key, e);
+            if (old!=null) used -= old.bytes;
+            used += e.bytes;
+            evict();
+        }
+
+        return swc;
+
+    }
+
+    private static ReadSWC await(FutureTask<ReadSWC> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    Throwable c = e.getCause();
+                    if (c instanceof RuntimeException) throw (RuntimeException) c;
+                    if (c instanceof Error) throw (Error) c;
+                    throw new RuntimeException(c);
+                }
+            }
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // entries are recounted first: the reconstructions build their structures (kdtree(), segments(), branches() ...)
+    // after they were added
+    private static void evict() {
+        used = 0;
+        for (Entry e : entries.values()) {
+            e.bytes = footprint(e.swc);
+            used += e.bytes;
+        }
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (used>budget && entries.size()>1) {
+            used -= it.next().getValue().bytes;
+            it.remove();
+        }
+    }
+
+    /**
+     * rough heap size of the reconstruction: node table, Node objects with their neighbour lists,
+     * the trees (if extracted) and the structures built over the table so far (ReadSWC.indexBytes()),
+     * recounted whenever the entry is requested again
+     */
+    static long footprint(ReadSWC swc) {
+
+        long n = swc.ntable.n, e = swc.ntable.nbr.length;
+
+        long table  = n*(4*4+1+4+4+4) + e*4;    // NodeTable + ids
+        long index  = swc.indexBytes();         // KdTree, VoxelGrid, SegmentBvh, resampled table, Components, Branches, Topology
+        long nodes  = n*(40+40) + e*(4+16);     // Node + ArrayList, Integer neighbours
+        long trees  = 0;
+        for (int i = 0; i < swc.trees.size(); i++) trees += swc.trees.get(i).size()*(40+40+4+16);
+
+        return table + index + nodes + trees + 16*swc.idmap.size();
+
+    }
+
+}
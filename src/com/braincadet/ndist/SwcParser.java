@@ -0,0 +1,482 @@
+package com.braincadet.ndist;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * byte level reader of the swc rows, numbers are parsed straight from the bytes (no String, no regex, no boxing)
+ * rows end up in growable primitive arrays, i-th row is id[i] type[i] x[i] y[i] z[i] r[i] parent[i]
+ * same rules as the line based reader: empty lines and # comments are skipped, lines that do not have exactly
+ * 7 numeric ([-+]?\d*\.?\d+ with , accepted as decimal point) values are skipped, rows with negative id are skipped
+ * (id, type and parent need to be integers, lines where they are not are skipped as well)
+ * large files are memory-mapped and split into newline-aligned chunks that are parsed in parallel (parseMapped())
+ */
+public class SwcParser {
+
+    public int      n = 0; // number of rows
+    public int[]    id, type, parent;
+    public float[]  x, y, z, r;
+
+    public int maxID = Integer.MIN_VALUE;
+
+    public float minR = Float.POSITIVE_INFINITY, maxR = Float.NEGATIVE_INFINITY;
+    public float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+    public float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+    public float minZ = Float.POSITIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+
+    private static int BUFFER_SIZE = 1<<16;
+
+    public static long PARALLEL_MIN_SIZE = 1L<<24;  // files larger than this (bytes) are parsed with parseMapped()
+    public static long CHUNK_MIN_SIZE = 1L<<22;     // smallest chunk of the parallel parsing
+    public static long CHUNK_MAX_SIZE = 1L<<30;     // largest chunk step, leaves room below the 2 GB mapping limit for the line overlap
+
+    // float powers of ten that are exact (10^10 = 2^10 * 5^10, 5^10 < 2^24)
+    private static float[] P10 = new float[]{1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+    private static long MAX_EXACT = 1L<<24; // integers up to this one are exact in float
+
+    // token boundaries of the current line (reused)
+    private int[] tbeg = new int[ReadSWC.SWC_LINE_LENGTH];
+    private int[] tend = new int[ReadSWC.SWC_LINE_LENGTH];
+
+    private boolean valid; // set by parseInt/parseFloat
+
+    public SwcParser() {
+        this(1024);
+    }
+
+    public SwcParser(int capacity) {
+        capacity = Math.max(capacity, 16);
+        id      = new int[capacity];
+        type    = new int[capacity];
+        parent  = new int[capacity];
+        x       = new float[capacity];
+        y       = new float[capacity];
+        z       = new float[capacity];
+        r       = new float[capacity];
+    }
+
+    /**
+     * parse the swc file, in parallel chunks if the file is large and there is more than one thread available
+     */
+    public static SwcParser parse(String swcpath) throws IOException {
+
+        if (new File(swcpath).length()>=PARALLEL_MIN_SIZE && NdistCalculator.getPool().getParallelism()>1)
+            return parseMapped(swcpath);
+
+        SwcParser p = new SwcParser();
+        InputStream in = new FileInputStream(swcpath);
+        try {
+            p.read(in);
+        }
+        finally {
+            in.close();
+        }
+        return p;
+    }
+
+    /**
+     * memory-map the file and parse its newline-aligned chunks in parallel (shared fork/join pool),
+     * chunk results are concatenated in the file order (first row of a repeated id stays the first one)
+     * and the id maximum and the bounding box are reduced over the chunks,
+     * a chunk is at most CHUNK_MAX_SIZE plus the rest of its last line, so every mapping stays below 2 GB
+     */
+    public static SwcParser parseMapped(String swcpath) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(swcpath, "r");
+
+        try {
+
+            FileChannel ch = raf.getChannel();
+            long size = ch.size();
+
+            int P = NdistCalculator.getPool().getParallelism();
+            long step = Math.min(Math.max(CHUNK_MIN_SIZE, size/(4*P) + 1), CHUNK_MAX_SIZE);
+
+            // chunk borders, each one right after a line terminator
+            ArrayList<Long> cuts = new ArrayList<Long>();
+            cuts.add(0L);
+            long pos = step;
+            while (pos<size) {
+                pos = lineEnd(ch, pos, size);
+                if (pos-cuts.get(cuts.size()-1)>Integer.MAX_VALUE)
+                    throw new IOException("line longer than " + (Integer.MAX_VALUE-step) + " bytes around byte " + pos + " of " + swcpath);
+                if (pos<size) cuts.add(pos);
+                pos += step;
+            }
+            cuts.add(size);
+
+            SwcParser[] parts = new SwcParser[cuts.size()-1];
+            NdistCalculator.getPool().invoke(new SwcChunkTask(ch, cuts, parts, 0, parts.length));
+
+            return concat(parts);
+
+        }
+        finally {
+            raf.close();
+        }
+
+    }
+
+    // position after the first line terminator at or after pos (size if there is none)
+    private static long lineEnd(FileChannel ch, long pos, long size) throws IOException {
+
+        ByteBuffer bb = ByteBuffer.allocate(4096);
+
+        while (pos<size) {
+            bb.clear();
+            int cnt = ch.read(bb, pos);
+            if (cnt<=0) break;
+            for (int i = 0; i < cnt; i++) {
+                byte b = bb.get(i);
+                if (b=='\n' || b=='\r') return pos+i+1;
+            }
+            pos += cnt;
+        }
+
+        return size;
+
+    }
+
+    private static SwcParser concat(SwcParser[] parts) {
+
+        int total = 0;
+        for (SwcParser p : parts) total += p.n;
+
+        SwcParser out = new SwcParser(total);
+
+        for (SwcParser p : parts) {
+
+            System.arraycopy(p.id,      0, out.id,      out.n, p.n);
+            System.arraycopy(p.type,    0, out.type,    out.n, p.n);
+            System.arraycopy(p.parent,  0, out.parent,  out.n, p.n);
+            System.arraycopy(p.x,       0, out.x,       out.n, p.n);
+            System.arraycopy(p.y,       0, out.y,       out.n, p.n);
+            System.arraycopy(p.z,       0, out.z,       out.n, p.n);
+            System.arraycopy(p.r,       0, out.r,       out.n, p.n);
+            out.n += p.n;
+
+            out.maxID = (p.maxID>out.maxID)? p.maxID : out.maxID;
+
+            out.minR = Math.min(out.minR, p.minR); out.maxR = Math.max(out.maxR, p.maxR);
+            out.minX = Math.min(out.minX, p.minX); out.maxX = Math.max(out.maxX, p.maxX);
+            out.minY = Math.min(out.minY, p.minY); out.maxY = Math.max(out.maxY, p.maxY);
+            out.minZ = Math.min(out.minZ, p.minZ); out.maxZ = Math.max(out.maxZ, p.maxZ);
+
+        }
+
+        return out;
+
+    }
+
+    /**
+     * read all the rows from the buffer (position to limit)
+     */
+    public void read(ByteBuffer bb) {
+
+        byte[] buf = new byte[BUFFER_SIZE];
+        int len = 0; // bytes in the buffer
+
+        while (bb.hasRemaining()) {
+
+            if (len==buf.length) buf = Arrays.copyOf(buf, 2*buf.length); // line longer than the buffer
+
+            int cnt = Math.min(bb.remaining(), buf.length-len);
+            bb.get(buf, len, cnt);
+            len += cnt;
+
+            int done = lines(buf, 0, len, false);
+
+            // move the unfinished line to the beginning
+            System.arraycopy(buf, done, buf, 0, len-done);
+            len -= done;
+
+        }
+
+        lines(buf, 0, len, true);
+
+    }
+
+    /**
+     * read all the rows from the stream
+     */
+    public void read(InputStream in) throws IOException {
+
+        byte[] buf = new byte[BUFFER_SIZE];
+        int len = 0; // bytes in the buffer
+
+        while (true) {
+
+            if (len==buf.length) buf = Arrays.copyOf(buf, 2*buf.length); // line longer than the buffer
+
+            int cnt = in.read(buf, len, buf.length-len);
+            if (cnt<0) break;
+            len += cnt;
+
+            int done = lines(buf, 0, len, false);
+
+            // move the unfinished line to the beginning
+            System.arraycopy(buf, done, buf, 0, len-done);
+            len -= done;
+
+        }
+
+        lines(buf, 0, len, true);
+
+    }
+
+    /**
+     * parse the lines from buf[beg..end)
+     * @param last true if the last line ends at end even without the line terminator
+     * @return position after the last line that was parsed
+     */
+    public int lines(byte[] buf, int beg, int end, boolean last) {
+
+        int lbeg = beg;
+
+        for (int i = beg; i < end; i++) {
+            if (buf[i]=='\n' || buf[i]=='\r') {
+                line(buf, lbeg, i);
+                lbeg = i+1;
+            }
+        }
+
+        if (last && lbeg<end) {
+            line(buf, lbeg, end);
+            lbeg = end;
+        }
+
+        return lbeg;
+
+    }
+
+    private static boolean isSpace(byte b) {
+        return b==' ' || b=='\t' || b=='\n' || b==0x0B || b=='\f' || b=='\r';
+    }
+
+    private void line(byte[] buf, int beg, int end) {
+
+        // trim (String.trim() removes everything <= ' ')
+        while (beg<end && (buf[beg]&0xff)<=' ') beg++;
+        while (end>beg && (buf[end-1]&0xff)<=' ') end--;
+
+        if (beg==end) return;           // skip empty lines
+        if (buf[beg]=='#') return;      // # are comments
+
+        // split on whitespace
+        int cnt = 0;
+        int i = beg;
+        while (i<end) {
+            while (i<end && isSpace(buf[i])) i++;
+            if (i==end) break;
+            if (cnt==ReadSWC.SWC_LINE_LENGTH) return; // too many values
+            tbeg[cnt] = i;
+            while (i<end && !isSpace(buf[i])) i++;
+            tend[cnt] = i;
+            cnt++;
+        }
+
+        if (cnt!=ReadSWC.SWC_LINE_LENGTH) return; // skip the line that did not have enough values
+
+        for (int t = 0; t < ReadSWC.SWC_LINE_LENGTH; t++) {
+            if (!isNumeric(buf, tbeg[t], tend[t])) return; // skip if one of the node components is not a number
+        }
+
+        int     currId  = parseInt(buf, tbeg[ReadSWC.ID], tend[ReadSWC.ID]);        if (!valid) return;
+        int     currTyp = parseInt(buf, tbeg[ReadSWC.TYPE], tend[ReadSWC.TYPE]);    if (!valid) return;
+        float   currX   = parseFloat(buf, tbeg[ReadSWC.XCOORD], tend[ReadSWC.XCOORD]);
+        float   currY   = parseFloat(buf, tbeg[ReadSWC.YCOORD], tend[ReadSWC.YCOORD]);
+        float   currZ   = parseFloat(buf, tbeg[ReadSWC.ZCOORD], tend[ReadSWC.ZCOORD]);
+        float   currR   = parseFloat(buf, tbeg[ReadSWC.RADIUS], tend[ReadSWC.RADIUS]);
+        int     prevId  = parseInt(buf, tbeg[ReadSWC.PARENT], tend[ReadSWC.PARENT]);if (!valid) return;
+
+        if (currId<0) {
+            IJ.log("warning: node ID was negative -> skipping");
+            return;
+        }
+
+        add(currId, currTyp, currX, currY, currZ, currR, prevId);
+
+    }
+
+    public void add(int currId, int currTyp, float currX, float currY, float currZ, float currR, int prevId) {
+
+        if (n==id.length) {
+            int cap = 2*n;
+            id      = Arrays.copyOf(id, cap);
+            type    = Arrays.copyOf(type, cap);
+            parent  = Arrays.copyOf(parent, cap);
+            x       = Arrays.copyOf(x, cap);
+            y       = Arrays.copyOf(y, cap);
+            z       = Arrays.copyOf(z, cap);
+            r       = Arrays.copyOf(r, cap);
+        }
+
+        id[n]       = currId;
+        type[n]     = currTyp;
+        x[n]        = currX;
+        y[n]        = currY;
+        z[n]        = currZ;
+        r[n]        = currR;
+        parent[n]   = prevId;
+        n++;
+
+        maxID = (currId>maxID)? currId : maxID;
+
+        minR = (currR<minR)? currR : minR;
+        maxR = (currR>maxR)? currR : maxR;
+
+        minX = (currX<minX)? currX : minX;
+        maxX = (currX>maxX)? currX : maxX;
+
+        minY = (currY<minY)? currY : minY;
+        maxY = (currY>maxY)? currY : maxY;
+
+        minZ = (currZ<minZ)? currZ : minZ;
+        maxZ = (currZ>maxZ)? currZ : maxZ;
+
+    }
+
+    /**
+     * [-+]?\d*\.?\d+ where , counts as .
+     */
+    private static boolean isNumeric(byte[] buf, int beg, int end) {
+
+        int i = beg;
+        if (i<end && (buf[i]=='-' || buf[i]=='+')) i++;
+
+        int intDigits = 0, fracDigits = 0;
+        boolean dot = false;
+
+        for (; i < end; i++) {
+            byte b = buf[i];
+            if (b>='0' && b<='9') {
+                if (dot) fracDigits++;
+                else intDigits++;
+            }
+            else if ((b=='.' || b==',') && !dot) dot = true;
+            else return false;
+        }
+
+        return (dot)? fracDigits>0 : intDigits>0;
+
+    }
+
+    private int parseInt(byte[] buf, int beg, int end) {
+
+        valid = false;
+
+        int i = beg;
+        boolean neg = false;
+        if (buf[i]=='-' || buf[i]=='+') {
+            neg = buf[i]=='-';
+            i++;
+        }
+
+        long v = 0;
+        for (; i < end; i++) {
+            byte b = buf[i];
+            if (b<'0' || b>'9') return 0; // decimal point
+            v = 10*v + (b-'0');
+            if (v>(long)Integer.MAX_VALUE+1) return 0; // out of int range
+        }
+
+        v = (neg)? -v : v;
+        if (v>Integer.MAX_VALUE) return 0;
+
+        valid = true;
+        return (int) v;
+
+    }
+
+    /**
+     * float value of the numeric token, correctly rounded (same as Float.valueOf())
+     */
+    private static float parseFloat(byte[] buf, int beg, int end) {
+
+        int i = beg;
+        boolean neg = false;
+        if (buf[i]=='-' || buf[i]=='+') {
+            neg = buf[i]=='-';
+            i++;
+        }
+
+        long m = 0;
+        int frac = -1; // digits after the decimal point, -1 if there was no point
+
+        for (; i < end; i++) {
+            byte b = buf[i];
+            if (b=='.' || b==',') {
+                frac = 0;
+                continue;
+            }
+            m = 10*m + (b-'0');
+            if (frac>=0) frac++;
+            if (m>MAX_EXACT) break;
+        }
+
+        if (m>MAX_EXACT || frac>=P10.length) { // rare: too many digits for the exact float division
+            char[] c = new char[end-beg];
+            for (int k = 0; k < c.length; k++) c[k] = (buf[beg+k]==',')? '.' : (char) buf[beg+k];
+            return Float.parseFloat(new String(c));
+        }
+
+        // both m and 10^frac are exact floats, so the (correctly rounded) division gives the closest float
+        float v = (frac>0)? m/P10[frac] : (float) m;
+        return (neg)? -v : v;
+
+    }
+
+}
+
+class SwcChunkTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private FileChannel ch;
+    private ArrayList<Long> cuts;
+    private SwcParser[] parts;
+    private int beg, end; // chunk indexes
+
+    public SwcChunkTask(FileChannel ch, ArrayList<Long> cuts, SwcParser[] parts, int beg, int end) {
+        this.ch = ch;
+        this.cuts = cuts;
+        this.parts = parts;
+        this.beg = beg;
+        this.end = end;
+    }
+
+    protected void compute() {
+
+        if (end-beg>1) {
+            int mid = (beg+end)>>>1;
+            invokeAll(new SwcChunkTask(ch, cuts, parts, beg, mid), new SwcChunkTask(ch, cuts, parts, mid, end));
+            return;
+        }
+
+        long pos = cuts.get(beg);
+        long len = cuts.get(beg+1) - pos;
+
+        SwcParser p = new SwcParser((int) Math.min(len/32, Integer.MAX_VALUE/2)); // ~32 bytes per swc line
+        try {
+            MappedByteBuffer bb = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            p.read(bb);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        parts[beg] = p;
+
+    }
+
+}
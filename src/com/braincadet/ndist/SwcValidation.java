@@ -0,0 +1,55 @@
+package com.braincadet.ndist;
+
+import java.util.Arrays;
+
+/**
+ * what was dropped or found inconsistent while the swc rows were turned into the node table (ReadSWC.validation)
+ * counts are kept for every kind, the first MAX_SAMPLES swc ids of each kind are kept as examples
+ */
+public class SwcValidation {
+
+    public static int MAX_SAMPLES = 10;
+
+    public int  rows;               // parsed rows
+    public int  nodes;              // nodes kept (one per id)
+    public int  repeatedIds;        // rows skipped because their id was used before (their links are kept)
+    public int  selfLinks;          // rows with parent == id
+    public int  missingParents;     // rows whose parent id is not in the file
+    public int  duplicateLinks;     // links given more than once (counted once per extra copy)
+    public int  asymmetricLinks;    // links present in one direction only (inconsistent table)
+
+    public int[] repeatedIdSamples      = new int[0];
+    public int[] missingParentSamples   = new int[0];
+    public int[] asymmetricSamples      = new int[0]; // id of the node owning the one-directional link
+
+    /**
+     * table is consistent: every link has its reverse direction
+     */
+    public boolean isValid() {
+        return asymmetricLinks==0;
+    }
+
+    /**
+     * nothing was dropped and the table is consistent
+     */
+    public boolean isClean() {
+        return isValid() && repeatedIds==0 && selfLinks==0 && missingParents==0 && duplicateLinks==0;
+    }
+
+    static int[] sample(int[] samples, int id) {
+        if (samples.length>=MAX_SAMPLES) return samples;
+        int[] out = Arrays.copyOf(samples, samples.length+1);
+        out[samples.length] = id;
+        return out;
+    }
+
+    public String toString() {
+        return "rows=" + rows + ", nodes=" + nodes +
+                ", repeated ids=" + repeatedIds + ((repeatedIds>0)? " " + Arrays.toString(repeatedIdSamples) : "") +
+                ", self links=" + selfLinks +
+                ", missing parents=" + missingParents + ((missingParents>0)? " " + Arrays.toString(missingParentSamples) : "") +
+                ", duplicate links=" + duplicateLinks +
+                ", asymmetric links=" + asymmetricLinks + ((asymmetricLinks>0)? " " + Arrays.toString(asymmetricSamples) : "");
+    }
+
+}
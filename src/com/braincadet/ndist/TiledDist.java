@@ -0,0 +1,711 @@
+package com.braincadet.ndist;
+
+import ij.IJ;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * bounded-memory comparison of two swc files, for reconstructions too large to be held as ReadSWC next to each other
+ * nothing is kept per node in the heap, everything goes through files in a temporary directory:
+ * 1. rows are streamed from the swc file into id range buckets, each bucket is de-duplicated (first row of an id is kept)
+ *    and sorted by id, which gives every node the index it has in ReadSWC.ntable, buckets with more than 2*BUCKET_ROWS
+ *    rows (skewed ids) are streamed again into buckets over their own id range until they are small enough
+ * 2. nodes of both files are spilled into the tiles of one uniform grid (about TILE_NODES nodes per tile)
+ * 3. every tile of A is loaded together with the tiles of B ring by ring around it (k-d tree per B tile, CACHED_TILES kept),
+ *    until no unvisited B tile can be closer than the current minimum of each node (same bound as VoxelGrid),
+ *    closest distances are written to a memory-mapped file at the node index (and the same for B->A),
+ *    tiles with more than TILE_RECORDS nodes (piled up nodes) are read in parts of TILE_RECORDS, on both sides
+ * 4. distance files are reduced in the node order into the counts and sums NdistCalculator.compute() needs
+ * heap use is set by BUCKET_ROWS, TILE_RECORDS, CACHED_TILES and SPILL_BUFFERS, not by the size of the reconstructions
+ * output is the one of ReadSWC.spatdist1() without the mask: distances, counts and SD are identical, the double sums of SSD
+ * are accumulated in another order (can differ in the last float bit)
+ */
+public class TiledDist {
+
+    public static int   BUCKET_ROWS     = 1<<20;    // swc rows per id bucket
+    public static int   TILE_NODES      = 1<<16;    // average number of nodes per (non-empty dimension) tile
+    public static int   CACHED_TILES    = 64;       // B tiles (parts of, with their k-d trees) kept loaded
+    public static int   MAX_TILES       = 1<<16;    // tiles are made larger if the grid would have more
+    public static int   TILE_RECORDS    = 1<<18;    // nodes of a tile loaded at a time, larger tiles are read in parts
+    public static int   SPILL_BUFFERS   = 1<<11;    // buckets/tiles buffered at a time (SPILL_BUFFER bytes each), least recent are flushed
+
+    private static double MARGIN = 1e-5;            // relative safety margin for the ring lower bound (float rounding)
+    private static int RECORD = 16;                 // spilled record: int (id or index), float x, y, z
+    private static int SPILL_BUFFER = 1<<14;        // bytes buffered per bucket/tile before they are appended to its file
+    private static int SEGMENT = 1<<28;             // floats per mapped segment of the distance files
+
+    private File dir;
+
+    // common grid
+    private float   minX, minY, minZ;
+    private float   h;
+    private int     nx, ny, nz;
+
+    private TiledDist(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * measures between swca and swcb at the thresholds sval (rows as in NdistCalculator.compute()),
+     * empty array if either of the files has no nodes
+     */
+    public static float[][] compare(String swca, String swcb, float[] sval) throws IOException {
+
+        File dir = Files.createTempDirectory("ndist").toFile();
+
+        try {
+            return new TiledDist(dir).run(swca, swcb, sval);
+        }
+        finally {
+            File[] fList = dir.listFiles();
+            if (fList!=null) for (File f : fList) f.delete();
+            dir.delete();
+        }
+
+    }
+
+    private float[][] run(String swca, String swcb, float[] sval) throws IOException {
+
+        Scan a = new Scan(swca);
+        Scan b = new Scan(swcb);
+
+        if (a.rows==0 || b.rows==0) {
+            IJ.log("Empty SWC:" + ((a.rows==0)? swca : swcb));
+            return new float[0][];
+        }
+
+        grid(Math.min(a.p.minX, b.p.minX), Math.max(a.p.maxX, b.p.maxX),
+             Math.min(a.p.minY, b.p.minY), Math.max(a.p.maxY, b.p.maxY),
+             Math.min(a.p.minZ, b.p.minZ), Math.max(a.p.maxZ, b.p.maxZ), (double) a.rows + b.rows);
+
+        int nA = tiles(swca, a, "a");
+        int nB = tiles(swcb, b, "b");
+
+        File dAB = new File(dir, "dab");
+        File dBA = new File(dir, "dba");
+
+        distances("a", "b", nA, dAB);
+        distances("b", "a", nB, dBA);
+
+        return NdistCalculator.compute(sval, reduce(dAB, nA, sval), reduce(dBA, nB, sval));
+
+    }
+
+    /**
+     * streamed pass over the swc rows (rows, id range and bounding box)
+     */
+    private static class Scan {
+
+        SwcParser p = new SwcParser(); // keeps the bounding box and the maximum id
+        long rows = 0;
+        int minID = Integer.MAX_VALUE;
+
+        Scan(String swcpath) throws IOException {
+            rows(swcpath, p, new Rows() {
+                public void row(SwcParser p, int i) {
+                    rows++;
+                    minID = Math.min(minID, p.id[i]);
+                }
+            });
+        }
+
+    }
+
+    private interface Rows {
+        void row(SwcParser p, int i);
+    }
+
+    // parse the file block by block, the rows of each block are passed on and dropped
+    private static void rows(String swcpath, SwcParser p, Rows out) throws IOException {
+
+        InputStream in = new FileInputStream(swcpath);
+
+        try {
+
+            byte[] buf = new byte[1<<16];
+            int len = 0;
+
+            while (true) {
+
+                if (len==buf.length) buf = Arrays.copyOf(buf, 2*buf.length);
+
+                int cnt = in.read(buf, len, buf.length-len);
+                if (cnt<0) break;
+                len += cnt;
+
+                int done = p.lines(buf, 0, len, false);
+                System.arraycopy(buf, done, buf, 0, len-done);
+                len -= done;
+
+                for (int i = 0; i < p.n; i++) out.row(p, i);
+                p.n = 0;
+
+            }
+
+            p.lines(buf, 0, len, true);
+            for (int i = 0; i < p.n; i++) out.row(p, i);
+            p.n = 0;
+
+        }
+        finally {
+            in.close();
+        }
+
+    }
+
+    private void grid(float minX, float maxX, float minY, float maxY, float minZ, float maxZ, double n) {
+
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+
+        h = VoxelGrid.cellSize(n, TILE_NODES, (double)maxX-minX, (double)maxY-minY, (double)maxZ-minZ);
+
+        while (true) {
+            nx = cells((double)maxX-minX);
+            ny = cells((double)maxY-minY);
+            nz = cells((double)maxZ-minZ);
+            if ((long)nx*ny*nz<=MAX_TILES) break;
+            h *= 2;
+        }
+
+    }
+
+    private int cells(double extent) {
+        return (int) Math.min(Math.floor(extent/h) + 1, MAX_TILES);
+    }
+
+    private int cell(float v, float v0, int nc) {
+        double c = Math.floor((v - (double) v0) / h);
+        return (int) Math.max(Math.min(c, nc-1), 0); // NaN goes to 0
+    }
+
+    private int tile(float x, float y, float z) {
+        return cell(x, minX, nx) + nx*(cell(y, minY, ny) + ny*cell(z, minZ, nz));
+    }
+
+    /**
+     * de-duplicate the rows by id and spill the nodes into the tiles as (index, x, y, z)
+     * @return number of nodes
+     */
+    private int tiles(String swcpath, Scan s, String tag) throws IOException {
+
+        final int nb = (int) Math.min((s.rows + BUCKET_ROWS - 1)/BUCKET_ROWS, 1<<16);
+        final long width = ((long)s.p.maxID - s.minID)/nb + 1;
+        final int minID = s.minID;
+
+        final Spill buckets = new Spill(dir, tag + "_id", nb);
+
+        rows(swcpath, new SwcParser(), new Rows() {
+            public void row(SwcParser p, int i) {
+                buckets.add((int)((p.id[i] - (long)minID)/width), p.id[i], p.x[i], p.y[i], p.z[i]);
+            }
+        });
+        buckets.close();
+
+        Spill tiles = new Spill(dir, tag, nx*ny*nz);
+        int offset = 0;
+
+        for (int k = 0; k < nb; k++) offset = bucket(buckets.file(k), tiles, offset);
+
+        tiles.close();
+
+        return offset;
+
+    }
+
+    /**
+     * de-duplicate the rows of one id bucket (deleted afterwards) and spill them in the id order into the tiles
+     * @return offset plus the number of nodes of the bucket
+     */
+    private int bucket(final File f, final Spill tiles, int offset) throws IOException {
+
+        final long rows = f.length()/RECORD;
+        if (rows==0) {
+            f.delete();
+            return offset;
+        }
+
+        if (rows>2L*BUCKET_ROWS) {
+
+            // oversized, split by the id range of this bucket
+            final int[] range = new int[]{Integer.MAX_VALUE, Integer.MIN_VALUE};
+            stream(f, new RecordOut() {
+                public void add(int a, float x, float y, float z) {
+                    range[0] = Math.min(range[0], a);
+                    range[1] = Math.max(range[1], a);
+                }
+            });
+
+            if (range[0]==range[1]) {
+                // one id, the first row is kept
+                final int idx = offset;
+                final boolean[] first = new boolean[]{true};
+                stream(f, new RecordOut() {
+                    public void add(int a, float x, float y, float z) {
+                        if (first[0]) tiles.add(tile(x, y, z), idx, x, y, z);
+                        first[0] = false;
+                    }
+                });
+                f.delete();
+                return offset+1;
+            }
+
+            final int nb = (int) Math.min((rows + BUCKET_ROWS - 1)/BUCKET_ROWS, 1<<16);
+            final long width = ((long)range[1] - range[0])/nb + 1;
+
+            final Spill sub = new Spill(dir, f.getName() + "_s", nb);
+            stream(f, new RecordOut() {
+                public void add(int a, float x, float y, float z) {
+                    sub.add((int)((a - (long)range[0])/width), a, x, y, z);
+                }
+            });
+            sub.close();
+            f.delete();
+
+            for (int k = 0; k < nb; k++) offset = bucket(sub.file(k), tiles, offset);
+            return offset;
+
+        }
+
+        Records r = Records.read(f);
+        f.delete();
+
+        // first row of every id, ordered by id
+        IdMap seen = new IdMap(r.n);
+        long[] order = new long[r.n];
+        int cnt = 0;
+        for (int i = 0; i < r.n; i++) {
+            if (!seen.containsKey(r.a[i])) {
+                seen.put(r.a[i], i);
+                order[cnt++] = ((long)r.a[i]<<32) | i;
+            }
+        }
+
+        Arrays.sort(order, 0, cnt);
+
+        for (int j = 0; j < cnt; j++) {
+            int i = (int) order[j];
+            tiles.add(tile(r.x[i], r.y[i], r.z[i]), offset+j, r.x[i], r.y[i], r.z[i]);
+        }
+
+        return offset+cnt;
+
+    }
+
+    /**
+     * closest squared distance from every node of the query tiles towards the nodes of the reference tiles,
+     * written at the node index into the file
+     */
+    private void distances(String query, String ref, int n, File out) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+
+        try {
+
+            raf.setLength(4L*n);
+            MappedByteBuffer[] seg = map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, n);
+
+            TileCache cache = new TileCache(new Spill(dir, ref, nx*ny*nz), nx*ny*nz);
+            Spill qtiles = new Spill(dir, query, nx*ny*nz);
+
+            for (int cz = 0; cz < nz; cz++) {
+                for (int cy = 0; cy < ny; cy++) {
+                    for (int cx = 0; cx < nx; cx++) {
+
+                        File qf = qtiles.file(cx + nx*(cy + ny*cz));
+                        for (int qp = 0, qparts = parts(qf); qp < qparts; qp++) {
+
+                            Records q = Records.read(qf, qp);
+
+                            float[] best = new float[q.n];
+                            Arrays.fill(best, Float.POSITIVE_INFINITY);
+                            boolean[] done = new boolean[q.n];
+                            int left = q.n;
+
+                            int r1 = Math.max(Math.max(Math.max(cx, nx-1-cx), Math.max(cy, ny-1-cy)), Math.max(cz, nz-1-cz));
+
+                            for (int r = 0; r <= r1 && left>0; r++) {
+
+                                // tiles of ring r
+                                for (int iz = Math.max(cz-r, 0); iz <= Math.min(cz+r, nz-1); iz++) {
+                                    for (int iy = Math.max(cy-r, 0); iy <= Math.min(cy+r, ny-1); iy++) {
+                                        boolean face = (iz==cz-r || iz==cz+r || iy==cy-r || iy==cy+r);
+                                        for (int ix = Math.max(cx-r, 0); ix <= Math.min(cx+r, nx-1); ix++) {
+                                            if (!face && ix!=cx-r && ix!=cx+r) continue;
+                                            int tl = ix + nx*(iy + ny*iz);
+                                            for (int p = 0, np = cache.parts(tl); p < np; p++) {
+                                                KdTree t = cache.get(tl, p);
+                                                for (int i = 0; i < q.n; i++) {
+                                                    if (done[i]) continue;
+                                                    float d2 = t.nearest2(q.x[i], q.y[i], q.z[i]);
+                                                    if (d2<best[i]) best[i] = d2;
+                                                }
+                                            }
+                                        }
+                                    }
+                                }
+
+                                // anything that was not visited lies outside the tile box [c-r, c+r]
+                                for (int i = 0; i < q.n; i++) {
+                                    if (done[i]) continue;
+                                    double bound = Double.POSITIVE_INFINITY;
+                                    if (cx-r>0)     bound = Math.min(bound, q.x[i] - (minX + (double)(cx-r)*h));
+                                    if (cx+r<nx-1)  bound = Math.min(bound, (minX + (double)(cx+r+1)*h) - q.x[i]);
+                                    if (cy-r>0)     bound = Math.min(bound, q.y[i] - (minY + (double)(cy-r)*h));
+                                    if (cy+r<ny-1)  bound = Math.min(bound, (minY + (double)(cy+r+1)*h) - q.y[i]);
+                                    if (cz-r>0)     bound = Math.min(bound, q.z[i] - (minZ + (double)(cz-r)*h));
+                                    if (cz+r<nz-1)  bound = Math.min(bound, (minZ + (double)(cz+r+1)*h) - q.z[i]);
+                                    bound = Math.max(bound, 0) * (1-MARGIN);
+                                    if (best[i]==0 || best[i]<=bound*bound) {
+                                        done[i] = true;
+                                        left--;
+                                    }
+                                }
+
+                            }
+
+                            for (int i = 0; i < q.n; i++) seg[q.a[i]/SEGMENT].putFloat(4*(q.a[i]%SEGMENT), best[i]);
+
+                        }
+
+                    }
+                }
+            }
+
+            for (MappedByteBuffer s : seg) s.force();
+
+        }
+        finally {
+            raf.close();
+        }
+
+    }
+
+    private static MappedByteBuffer[] map(FileChannel ch, FileChannel.MapMode mode, int n) throws IOException {
+        MappedByteBuffer[] seg = new MappedByteBuffer[(n + SEGMENT - 1)/SEGMENT];
+        for (int s = 0; s < seg.length; s++)
+            seg[s] = ch.map(mode, 4L*s*SEGMENT, 4L*Math.min(SEGMENT, n - (long)s*SEGMENT));
+        return seg;
+    }
+
+    /**
+     * counts and sums of the distances above the thresholds, read in the node order
+     */
+    private static DistanceSweep reduce(File f, int n, float[] sval) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+
+        try {
+
+            MappedByteBuffer[] seg = map(raf.getChannel(), FileChannel.MapMode.READ_ONLY, n);
+
+            int[]       cnt = new int[sval.length+1];       // cnt[k]: number of thresholds <= d is k
+            double[]    sum = new double[sval.length+1];
+            float total = 0;
+
+            for (int i = 0; i < n; i++) {
+                float d = (float) Math.sqrt(seg[i/SEGMENT].getFloat(4*(i%SEGMENT)));
+                total += d;
+                if (d!=d) continue;
+                int k = above(sval, d);
+                cnt[k]++;
+                sum[k] += d;
+            }
+
+            return new Sweep(n, total, sval, cnt, sum);
+
+        }
+        finally {
+            raf.close();
+        }
+
+    }
+
+    // number of thresholds s<=d (sval ascending)
+    private static int above(float[] sval, float d) {
+        int lo = 0, hi = sval.length;
+        while (lo<hi) {
+            int mid = (lo+hi)>>>1;
+            if (sval[mid]<=d)   lo = mid+1;
+            else                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * sweep answered from the per-threshold counts and sums (only the thresholds it was reduced with)
+     */
+    private static class Sweep extends DistanceSweep {
+
+        private float[]     sval;
+        private int[]       cnt;    // cnt[k]: distances d>=sval[k]
+        private double[]    sums;
+
+        Sweep(int n, float total, float[] sval, int[] hist, double[] hsum) {
+
+            this.n      = n;
+            this.sum    = total;
+            this.sval   = sval;
+
+            cnt     = new int[sval.length];
+            sums    = new double[sval.length];
+
+            int c = 0;
+            double t = 0;
+            for (int k = sval.length-1; k >= 0; k--) {
+                c += hist[k+1];
+                t += hsum[k+1];
+                cnt[k] = c;
+                sums[k] = t;
+            }
+
+        }
+
+        public int countAbove(float s) {
+            return cnt[index(s)];
+        }
+
+        public double sumAbove(float s) {
+            return sums[index(s)];
+        }
+
+        private int index(float s) {
+            int k = Arrays.binarySearch(sval, s);
+            if (k<0) throw new IllegalArgumentException("S=" + s + " was not reduced");
+            return k;
+        }
+
+    }
+
+    // parts of TILE_RECORDS records of the spilled file, 0 if it does not exist
+    private static int parts(File f) {
+        return (int) ((f.length()/RECORD + TILE_RECORDS - 1)/TILE_RECORDS);
+    }
+
+    /**
+     * loaded tile parts of the reference side with their k-d trees, least recently used ones are dropped
+     */
+    private static class TileCache {
+
+        private Spill tiles;
+        private int[] parts;    // per tile, -1 until asked for
+        private LinkedHashMap<Long, KdTree> loaded = new LinkedHashMap<Long, KdTree>(16, 0.75f, true);
+
+        TileCache(Spill tiles, int count) {
+            this.tiles = tiles;
+            parts = new int[count];
+            Arrays.fill(parts, -1);
+        }
+
+        int parts(int t) {
+            if (parts[t]<0) parts[t] = TiledDist.parts(tiles.file(t));
+            return parts[t];
+        }
+
+        KdTree get(int t, int p) throws IOException {
+
+            Long key = ((long)t<<32) | p;
+            KdTree tree = loaded.get(key);
+
+            if (tree==null) {
+
+                Records r = Records.read(tiles.file(t), p);
+
+                NodeTable nt = new NodeTable(r.n, 0);
+                System.arraycopy(r.x, 0, nt.x, 0, r.n);
+                System.arraycopy(r.y, 0, nt.y, 0, r.n);
+                System.arraycopy(r.z, 0, nt.z, 0, r.n);
+                tree = new KdTree(nt);
+
+                loaded.put(key, tree);
+
+                Iterator<Map.Entry<Long, KdTree>> it = loaded.entrySet().iterator();
+                while (loaded.size()>CACHED_TILES) {
+                    it.next();
+                    it.remove();
+                }
+
+            }
+
+            return tree;
+
+        }
+
+    }
+
+    /**
+     * records (int, float x, float y, float z) appended to one file per bucket/tile, buffered in memory per bucket,
+     * at most SPILL_BUFFERS buffers at a time: the least recently added to is flushed and its buffer reused
+     */
+    private static class Spill {
+
+        private File        dir;
+        private String      tag;
+        private byte[][]    buf;
+        private int[]       len;
+        private int[]       prev, next; // buffered buckets from the least to the most recent, list head at index count
+        private int         open = 0;
+
+        Spill(File dir, String tag, int count) {
+            this.dir = dir;
+            this.tag = tag;
+            buf = new byte[count][];
+            len = new int[count];
+            prev = new int[count+1];
+            next = new int[count+1];
+            prev[count] = next[count] = count;
+        }
+
+        File file(int k) {
+            return new File(dir, tag + "_" + k);
+        }
+
+        void add(int k, int a, float x, float y, float z) {
+
+            int head = buf.length;
+
+            if (buf[k]==null) {
+                if (open>=Math.max(SPILL_BUFFERS, 1)) {
+                    int old = next[head];
+                    if (len[old]>0) flush(old);
+                    unlink(old);
+                    buf[k] = buf[old];
+                    buf[old] = null;
+                }
+                else {
+                    buf[k] = new byte[SPILL_BUFFER];
+                    open++;
+                }
+                link(k);
+            }
+            else if (next[k]!=head) {
+                unlink(k);
+                link(k);
+            }
+
+            if (len[k]+RECORD>SPILL_BUFFER) flush(k);
+
+            ByteBuffer.wrap(buf[k], len[k], RECORD).putInt(a).putFloat(x).putFloat(y).putFloat(z);
+            len[k] += RECORD;
+
+        }
+
+        private void flush(int k) {
+            try {
+                OutputStream out = new FileOutputStream(file(k), true);
+                try {
+                    out.write(buf[k], 0, len[k]);
+                }
+                finally {
+                    out.close();
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            len[k] = 0;
+        }
+
+        // as the most recent
+        private void link(int k) {
+            int head = buf.length;
+            prev[k] = prev[head];
+            next[k] = head;
+            next[prev[head]] = k;
+            prev[head] = k;
+        }
+
+        private void unlink(int k) {
+            next[prev[k]] = next[k];
+            prev[next[k]] = prev[k];
+        }
+
+        void close() {
+            for (int k = 0; k < buf.length; k++) {
+                if (len[k]>0) flush(k);
+                buf[k] = null;
+            }
+            open = 0;
+            prev[buf.length] = next[buf.length] = buf.length;
+        }
+
+    }
+
+    private interface RecordOut {
+        void add(int a, float x, float y, float z);
+    }
+
+    // records of the spilled file in the file order, without holding them
+    private static void stream(File f, RecordOut out) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), SPILL_BUFFER));
+
+        try {
+            for (long i = f.length()/RECORD; i > 0; i--) out.add(in.readInt(), in.readFloat(), in.readFloat(), in.readFloat());
+        }
+        finally {
+            in.close();
+        }
+
+    }
+
+    private static class Records {
+
+        int n;
+        int[] a;
+        float[] x, y, z;
+
+        // whole file (id buckets, bounded by their split)
+        static Records read(File f) throws IOException {
+            return read(f, 0, (int) (f.length()/RECORD));
+        }
+
+        // part p of TILE_RECORDS records
+        static Records read(File f, int p) throws IOException {
+            long first = (long)p*TILE_RECORDS;
+            return read(f, first, (int) Math.min(TILE_RECORDS, f.length()/RECORD - first));
+        }
+
+        private static Records read(File f, long first, int count) throws IOException {
+
+            byte[] b = new byte[count*RECORD];
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                raf.seek(first*RECORD);
+                raf.readFully(b);
+            }
+            finally {
+                raf.close();
+            }
+            ByteBuffer bb = ByteBuffer.wrap(b);
+
+            Records r = new Records();
+            r.n = count;
+            r.a = new int[r.n];
+            r.x = new float[r.n];
+            r.y = new float[r.n];
+            r.z = new float[r.n];
+
+            for (int i = 0; i < r.n; i++) {
+                r.a[i] = bb.getInt();
+                r.x[i] = bb.getFloat();
+                r.y[i] = bb.getFloat();
+                r.z[i] = bb.getFloat();
+            }
+
+            return r;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.braincadet.ndist;
+
+/**
+ * classes of the nodes of a node table, from one pass over the link rows:
+ * SOMA (Node.SOMA type), TERMINAL (degree 0 or 1), CONTINUATION (2), BIFURCATION (3), MULTIFURCATION (more than 3)
+ * nodes of each class are kept as table indexes in ascending order, together with the two export selections
+ * that do not depend on the type: branching (degree 3 or more) and terminals (degree 0 or 1)
+ */
+public class Topology {
+
+    public static int SOMA              = 0;
+    public static int TERMINAL          = 1;
+    public static int CONTINUATION      = 2;
+    public static int BIFURCATION       = 3;
+    public static int MULTIFURCATION    = 4;
+    public static String[] CLASS = new String[]{"SOMA", "TERMINAL", "CONTINUATION", "BIFURCATION", "MULTIFURCATION"};
+
+    public byte[]   cls;        // node -> class
+    public int[][]  nodes;      // class -> nodes
+    public int[]    branching;  // nodes with degree >= 3 (ReadSWC.getBifurcations())
+    public int[]    terminals;  // nodes with degree <= 1
+
+    public Topology(NodeTable t) {
+
+        cls = new byte[t.n];
+
+        int[] cnt = new int[CLASS.length];
+        int nbranching = 0, nterminals = 0;
+
+        for (int i = 0; i < t.n; i++) {
+
+            int deg = t.nbr0[i+1] - t.nbr0[i];
+
+            int c;
+            if (t.type[i]==Node.SOMA)   c = SOMA;
+            else if (deg<=1)            c = TERMINAL;
+            else if (deg==2)            c = CONTINUATION;
+            else if (deg==3)            c = BIFURCATION;
+            else                        c = MULTIFURCATION;
+
+            cls[i] = (byte) c;
+            cnt[c]++;
+            if (deg>=3) nbranching++;
+            if (deg<=1) nterminals++;
+
+        }
+
+        // indexes, scattered from the classes and the row offsets
+        nodes = new int[CLASS.length][];
+        for (int c = 0; c < CLASS.length; c++) nodes[c] = new int[cnt[c]];
+        branching = new int[nbranching];
+        terminals = new int[nterminals];
+
+        int[] fill = new int[CLASS.length];
+        int b = 0, e = 0;
+        for (int i = 0; i < t.n; i++) {
+            nodes[cls[i]][fill[cls[i]]++] = i;
+            int deg = t.nbr0[i+1] - t.nbr0[i];
+            if (deg>=3) branching[b++] = i;
+            if (deg<=1) terminals[e++] = i;
+        }
+
+    }
+
+    public int count(int c) {
+        return nodes[c].length;
+    }
+
+}
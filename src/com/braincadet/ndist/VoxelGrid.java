@@ -0,0 +1,220 @@
+package com.braincadet.ndist;
+
+/**
+ * uniform grid over the node coordinates, alternative to the k-d tree for the nearest neighbour queries
+ * grid spans the bounding box of the reconstruction, cells are hashed (table sized by the node count)
+ * and the points of one hash bucket are stored contiguously
+ * query searches the cells ring by ring around the query cell and stops at the first ring
+ * that can not hold anything closer than the current minimum
+ * works best when the reconstruction is densely sampled and the partner node is usually a few cells away
+ */
+public class VoxelGrid {
+
+    private static float CELL_OCCUPANCY = 2f;   // average number of nodes per (non-empty dimension) cell
+    private static double MARGIN = 1e-5;        // relative safety margin for the ring lower bound (float rounding)
+
+    private float   minX, minY, minZ;
+    private float   h;                          // cell size
+    private int     nx, ny, nz;                 // grid dimensions, in cells
+
+    private int     mask;                       // hash table size - 1
+    private int[]   start;                      // bucket b holds points start[b] .. start[b+1]-1
+    private float[] x, y, z;                    // coordinates reordered by bucket
+    private int     n;
+
+    /**
+     * @param nlist nodes to index
+     * @param minX bounding box of the reconstruction (ReadSWC.minX ... maxZ), has to contain all the nodes
+     */
+    public VoxelGrid(NodeTable nlist, float minX, float maxX, float minY, float maxY, float minZ, float maxZ) {
+
+        n = nlist.n;
+
+        // widen the box in case some of the nodes were not covered
+        for (int i = 0; i < n; i++) {
+            minX = (nlist.x[i]<minX)? nlist.x[i] : minX;
+            maxX = (nlist.x[i]>maxX)? nlist.x[i] : maxX;
+            minY = (nlist.y[i]<minY)? nlist.y[i] : minY;
+            maxY = (nlist.y[i]>maxY)? nlist.y[i] : maxY;
+            minZ = (nlist.z[i]<minZ)? nlist.z[i] : minZ;
+            maxZ = (nlist.z[i]>maxZ)? nlist.z[i] : maxZ;
+        }
+
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+
+        h = cellSize(n, (double)maxX-minX, (double)maxY-minY, (double)maxZ-minZ);
+
+        nx = cells((double)maxX-minX, h);
+        ny = cells((double)maxY-minY, h);
+        nz = cells((double)maxZ-minZ, h);
+
+        int tsize = 1;
+        while (tsize<n && tsize<(1<<30)) tsize <<= 1;
+        mask = tsize-1;
+
+        // counting sort of the points by bucket
+        int[] bucket = new int[n];
+        start = new int[tsize+1];
+
+        for (int i = 0; i < n; i++) {
+            bucket[i] = hash(clamp(cell(nlist.x[i], this.minX), nx), clamp(cell(nlist.y[i], this.minY), ny), clamp(cell(nlist.z[i], this.minZ), nz));
+            start[bucket[i]+1]++;
+        }
+
+        for (int b = 0; b < tsize; b++) start[b+1] += start[b];
+
+        int[] fill = new int[tsize];
+        System.arraycopy(start, 0, fill, 0, tsize);
+
+        x = new float[n];
+        y = new float[n];
+        z = new float[n];
+
+        for (int i = 0; i < n; i++) {
+            int k = fill[bucket[i]]++;
+            x[k] = nlist.x[i];
+            y[k] = nlist.y[i];
+            z[k] = nlist.z[i];
+        }
+
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * cell size for the given extent so that the non-empty dimensions hold CELL_OCCUPANCY nodes per cell on average,
+     * dimensions narrower than one cell (e.g. z of 2d traces) do not count
+     */
+    private static float cellSize(int n, double ex, double ey, double ez) {
+        return cellSize(n, CELL_OCCUPANCY, ex, ey, ez);
+    }
+
+    static float cellSize(double n, double occupancy, double ex, double ey, double ez) {
+
+        double[] ext = new double[]{ex, ey, ez};
+        double cs = Double.POSITIVE_INFINITY;
+
+        for (int iter = 0; iter < 3; iter++) {
+
+            double vol = 1;
+            int dims = 0;
+            for (int d = 0; d < 3; d++) {
+                if (ext[d]>0 && (Double.isInfinite(cs) || ext[d]>=cs)) {
+                    vol *= ext[d];
+                    dims++;
+                }
+            }
+
+            if (dims==0) break;
+
+            double cs1 = Math.pow(vol * occupancy / Math.max(n, 1), 1.0/dims);
+            if (cs1==cs) break;
+            cs = cs1;
+
+        }
+
+        if (Double.isInfinite(cs) || !(cs>0)) cs = 1;
+
+        return (float) cs;
+
+    }
+
+    private static int cells(double extent, float h) {
+        double c = Math.floor(extent/h) + 1;
+        return (int) Math.min(c, Integer.MAX_VALUE/2);
+    }
+
+    private int cell(float v, float v0) {
+        double c = Math.floor((v - (double) v0) / h);
+        return (int) Math.max(Math.min(c, Integer.MAX_VALUE/2), Integer.MIN_VALUE/2);
+    }
+
+    private static int clamp(int c, int nc) {
+        return (c<0)? 0 : ((c>=nc)? nc-1 : c);
+    }
+
+    private int hash(int ix, int iy, int iz) {
+        long k = ix + (long)nx*(iy + (long)ny*iz);
+        // 64 bit finalizer (murmur3) to spread neighbouring cells over the table
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return (int) k & mask;
+    }
+
+    /**
+     * squared euclidean distance from (qx,qy,qz) towards the closest point of the grid,
+     * same float arithmetic as the brute-force scan, so the result is identical
+     */
+    public float nearest2(float qx, float qy, float qz) {
+
+        if (n==0) return Float.POSITIVE_INFINITY;
+
+        int cx = cell(qx, minX);
+        int cy = cell(qy, minY);
+        int cz = cell(qz, minZ);
+
+        // distance of the query towards the faces of its own cell
+        double gx = Math.min(qx - (minX + (double)cx*h), (minX + (double)(cx+1)*h) - qx);
+        double gy = Math.min(qy - (minY + (double)cy*h), (minY + (double)(cy+1)*h) - qy);
+        double gz = Math.min(qz - (minZ + (double)cz*h), (minZ + (double)(cz+1)*h) - qz);
+        double gap = Math.max(Math.min(gx, Math.min(gy, gz)), 0);
+
+        // rings that do not intersect the grid are empty
+        int r0 = Math.max(outside(cx, nx), Math.max(outside(cy, ny), outside(cz, nz)));
+        int r1 = Math.max(Math.max(Math.abs(cx), Math.abs(nx-1-cx)), Math.max(Math.max(Math.abs(cy), Math.abs(ny-1-cy)), Math.max(Math.abs(cz), Math.abs(nz-1-cz))));
+
+        float best = Float.POSITIVE_INFINITY;
+
+        for (int r = r0; r <= r1; r++) {
+
+            int z0 = Math.max(cz-r, 0), z1 = Math.min(cz+r, nz-1);
+            int y0 = Math.max(cy-r, 0), y1 = Math.min(cy+r, ny-1);
+            int x0 = Math.max(cx-r, 0), x1 = Math.min(cx+r, nx-1);
+
+            for (int iz = z0; iz <= z1; iz++) {
+                boolean zface = (iz==cz-r || iz==cz+r);
+                for (int iy = y0; iy <= y1; iy++) {
+                    if (zface || iy==cy-r || iy==cy+r) {
+                        for (int ix = x0; ix <= x1; ix++) best = scan(hash(ix, iy, iz), qx, qy, qz, best);
+                    }
+                    else { // inside of the ring, only two cells along x belong to it
+                        if (cx-r>=0 && cx-r<nx)             best = scan(hash(cx-r, iy, iz), qx, qy, qz, best);
+                        if (r>0 && cx+r>=0 && cx+r<nx)      best = scan(hash(cx+r, iy, iz), qx, qy, qz, best);
+                    }
+                }
+            }
+
+            // anything outside ring r is at least r*h + gap away
+            if (best==0) break;
+            double bound = (r*(double)h + gap) * (1-MARGIN);
+            if (best<=bound*bound) break;
+
+        }
+
+        return best;
+
+    }
+
+    private static int outside(int c, int nc) {
+        return (c<0)? -c : ((c>=nc)? c-nc+1 : 0);
+    }
+
+    private float scan(int b, float qx, float qy, float qz, float best) {
+        for (int i = start[b]; i < start[b+1]; i++) {
+            float dx = qx - x[i];
+            float dy = qy - y[i];
+            float dz = qz - z[i];
+            float d2 = dx*dx + dy*dy + dz*dz;
+            if (d2<best) best = d2;
+        }
+        return best;
+    }
+
+}